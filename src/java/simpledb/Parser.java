@@ -9,6 +9,7 @@ import java.util.*;
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
 import jline.SimpleCompletor;
+import simpledb.common.BulkLoader;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
@@ -571,7 +572,7 @@ public class Parser {
 
     public static void main(String[] argv) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 5) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -581,7 +582,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-load] [-explain] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
@@ -592,14 +593,21 @@ public class Parser {
 
     protected void start(String[] argv) throws IOException {
         // first add tables to database
-        Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        if (Arrays.asList(argv).contains("-load")) {
+            // the statistics are collected while loading
+            BulkLoader.loadSchema(argv[0], Runtime.getRuntime().availableProcessors());
+        } else {
+            Database.getCatalog().loadSchema(argv[0]);
+            TableStats.computeStatistics();
+        }
 
         String queryFile = null;
 
         if (argv.length > 1) {
             for (int i = 1; i < argv.length; i++) {
-                if (argv[i].equals("-explain")) {
+                if (argv[i].equals("-load")) {
+                    System.out.println("Tables loaded from their .txt files.");
+                } else if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
                 } else if (argv[i].equals("-f")) {
@@ -15,6 +15,18 @@ public class SimpleDb {
         switch (args[0]) {
             case "convert":
                 try {
+                    // --threads N may appear anywhere after the command
+                    int threads = Runtime.getRuntime().availableProcessors();
+                    for (int i = 1; i < args.length; i++) {
+                        if (args[i].equals("--threads") && i + 1 < args.length) {
+                            threads = Integer.parseInt(args[i + 1]);
+                            String[] rest = new String[args.length - 2];
+                            System.arraycopy(args, 0, rest, 0, i);
+                            System.arraycopy(args, i + 2, rest, i, args.length - i - 2);
+                            args = rest;
+                            break;
+                        }
+                    }
                     if (args.length < 3 || args.length > 5) {
                         System.err.println("Unexpected number of arguments to convert ");
                         return;
@@ -50,8 +62,12 @@ public class SimpleDb {
                             fieldSeparator = args[4].charAt(0);
                     }
 
-                    HeapFileEncoder.convert(sourceTxtFile, targetDatFile,
-                            BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator);
+                    long start = System.nanoTime();
+                    long rows = HeapFileEncoder.convert(sourceTxtFile, targetDatFile,
+                            BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator, threads);
+                    double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+                    System.out.printf("Converted %d rows in %.2f s (%.0f rows/sec, %d threads)%n",
+                            rows, seconds, rows / seconds, threads);
 
                 } catch (IOException e) {
                     throw new RuntimeException(e);
@@ -75,10 +91,24 @@ public class SimpleDb {
                     it.close();
                 }
                 break;
+            case "load":
             case "parser":
-                // Strip the first argument and call the parser
-                String[] newargs = new String[args.length - 1];
-                System.arraycopy(args, 1, newargs, 0, args.length - 1);
+                // Strip the first argument and call the parser; load has the
+                // parser bulk load the tables of the catalog from .txt files
+                String[] newargs;
+                if (args[0].equals("load")) {
+                    if (args.length < 2) {
+                        System.err.println("Usage: load catalogFile [-explain] [-f queryFile]");
+                        return;
+                    }
+                    newargs = new String[args.length];
+                    newargs[0] = args[1];
+                    newargs[1] = "-load";
+                    System.arraycopy(args, 2, newargs, 2, args.length - 2);
+                } else {
+                    newargs = new String[args.length - 1];
+                    System.arraycopy(args, 1, newargs, 0, args.length - 1);
+                }
 
                 try {
                     //dynamically load Parser -- if it doesn't exist, print error message
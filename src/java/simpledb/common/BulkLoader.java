@@ -0,0 +1,73 @@
+package simpledb.common;
+
+import simpledb.optimizer.TableStats;
+import simpledb.optimizer.TableStatsCollector;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.TupleDesc;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * BulkLoader turns delimited text files into tables that are ready to be
+ * queried: it writes the heap file with HeapFileEncoder, collects the
+ * TableStats of the table from the same pass over the input, and registers
+ * both.  Neither the loader nor the optimizer scan the new table afterwards.
+ */
+public class BulkLoader {
+
+    /**
+     * Loads inFile into a new heap file outFile and adds it to the catalog
+     * as table name, with its statistics.
+     *
+     * @param inFile the text file to load, one tuple per line
+     * @param outFile the heap file to write; it is overwritten
+     * @param name the name of the new table
+     * @param td the schema of the table
+     * @param fieldSeparator the character between two fields of a line
+     * @param threads the number of parsing threads
+     * @return the new table
+     * @throws IOException if the input/output file can't be opened or a
+     *   malformed input line is encountered
+     */
+    public static HeapFile load(File inFile, File outFile, String name, TupleDesc td,
+                                char fieldSeparator, int threads) throws IOException {
+        HeapFile hf = convert(inFile, outFile, name, td, fieldSeparator, threads);
+        Database.getCatalog().addTable(hf, name);
+        return hf;
+    }
+
+    /**
+     * Reads a catalog file like {@link Catalog#loadSchema(String)}, but
+     * loads every table from the comma separated name.txt next to the
+     * catalog file, writing name.dat, instead of opening an existing name.dat.
+     *
+     * @param catalogFile the catalog file
+     * @param threads the number of parsing threads
+     */
+    public static void loadSchema(String catalogFile, int threads) {
+        Database.getCatalog().loadSchema(catalogFile, (name, dataFile, td) -> {
+            File inFile = new File(dataFile.getParentFile(), name + ".txt");
+            return convert(inFile, dataFile, name, td, ',', threads);
+        });
+    }
+
+    private static HeapFile convert(File inFile, File outFile, String name, TupleDesc td,
+                                    char fieldSeparator, int threads) throws IOException {
+        Type[] types = new Type[td.numFields()];
+        for (int i = 0; i < types.length; i ++ ) {
+            types[i] = td.getFieldType(i);
+        }
+        TableStatsCollector stats = new TableStatsCollector(td);
+        long start = System.nanoTime();
+        long rows = HeapFileEncoder.convert(inFile, outFile, BufferPool.getPageSize(), types.length,
+                types, fieldSeparator, threads, HeapFileEncoder.CHUNK_SIZE, stats);
+        HeapFile hf = new HeapFile(outFile, td);
+        TableStats.setTableStats(name, stats.build(hf.getId(), TableStats.IOCOSTPERPAGE, (int) (outFile.length() / BufferPool.getPageSize())));
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        System.out.printf("Loaded %s: %d rows in %.2f s (%.0f rows/sec)%n", name, rows, seconds, rows / seconds);
+        return hf;
+    }
+}
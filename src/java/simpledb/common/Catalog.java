@@ -135,11 +135,33 @@ public class Catalog {
         getPKey.clear();
     }
     
+    /**
+     * Opens the file of a table listed in a catalog file.
+     */
+    public interface TableSource {
+        /**
+         * @param name the name of the table
+         * @param dataFile the .dat file of the table, next to the catalog file
+         * @param td the schema of the table
+         */
+        DbFile open(String name, File dataFile, TupleDesc td) throws IOException;
+    }
+
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
+        loadSchema(catalogFile, (name, dataFile, td) -> new HeapFile(dataFile, td));
+    }
+
+    /**
+     * Reads the schema from a file and adds the tables opened by source to
+     * the database.
+     * @param catalogFile
+     * @param source opens the file of each table
+     */
+    public void loadSchema(String catalogFile, TableSource source) {
         String line = "";
         String baseFolder=new File(new File(catalogFile).getAbsolutePath()).getParent();
         try {
@@ -177,7 +199,7 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                DbFile tabHf = source.open(name, new File(baseFolder+"/"+name + ".dat"), t);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -8,6 +8,8 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -29,6 +31,9 @@ public class Insert extends Operator {
     // first
     Boolean first;
 
+    // number of child tuples handed to the buffer pool at once
+    private static final int BATCH_SIZE = 1024;
+
     /**
      * Constructor.
      *
@@ -88,7 +93,7 @@ public class Insert extends Operator {
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
      * @see Database#getBufferPool
-     * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
@@ -97,10 +102,15 @@ public class Insert extends Operator {
         TupleDesc td = new TupleDesc(type);
         Tuple tuple = new Tuple(td);
         int count = 0;
+        List<Tuple> batch = new ArrayList<>(BATCH_SIZE);
         try {
             while (child.hasNext()) {
-                Database.getBufferPool().insertTuple(tid, tableId, child.next());
-                count ++;
+                batch.add(child.next());
+                if (batch.size() == BATCH_SIZE || !child.hasNext()) {
+                    Database.getBufferPool().insertTuples(tid, tableId, batch.iterator());
+                    count += batch.size();
+                    batch.clear();
+                }
             }
         } catch (IOException e) {
             throw new DbException("error in fetchNext");
@@ -20,8 +20,23 @@ public class Join extends Operator {
     // OpIterator
     OpIterator[] children = new OpIterator[2];
 
-    // Tuple
-    Tuple tuple;
+    /** System property with the default block size, see {@link #Join(JoinPredicate, OpIterator, OpIterator, int)}. */
+    public static final String BLOCK_BYTES_PROPERTY = "simpledb.execution.Join.blockBytes";
+
+    public static final int DEFAULT_BLOCK_BYTES = 128 * 1024;
+
+    // bytes of outer tuples joined with each scan of the inner relation
+    private final int blockBytes;
+
+    // the outer tuples of the current block, copied out of their pages
+    private final List<Tuple> block = new ArrayList<>();
+
+    // the inner tuple being matched, and the next outer tuple to match it with
+    private Tuple inner;
+    private int next;
+
+    // schema of the results
+    private TupleDesc td;
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -36,9 +51,31 @@ public class Join extends Operator {
      */
     public Join(JoinPredicate p, OpIterator child1, OpIterator child2) {
         // some code goes here
+        this(p, child1, child2, Integer.getInteger(BLOCK_BYTES_PROPERTY, DEFAULT_BLOCK_BYTES));
+    }
+
+    /**
+     * Constructor for a join that holds blockBytes of outer tuples (by their
+     * on-page size) in memory and scans the inner relation once per block.
+     * Within a block the results come in inner relation order.  A block size
+     * of 0 joins one outer tuple at a time, which gives the results in outer
+     * relation order, then inner relation order, as a plain nested loops join.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param blockBytes
+     *            bytes of outer tuples per block
+     */
+    public Join(JoinPredicate p, OpIterator child1, OpIterator child2, int blockBytes) {
+        if (blockBytes < 0) throw new IllegalArgumentException("negative block size");
         predicate = p;
         children[0] = child1;
         children[1] = child2;
+        this.blockBytes = blockBytes;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -81,9 +118,23 @@ public class Join extends Operator {
         super.open();
         children[0].open();
         children[1].open();
-        if (children[0].hasNext()) {
-            tuple = children[0].next();
+        td = getTupleDesc();
+        inner = null;
+        fillBlock();
+    }
+
+    // reads the next block of outer tuples, returns false if there are none
+    private boolean fillBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        TupleDesc outerTd = children[0].getTupleDesc();
+        int blockSize = Math.max(1, blockBytes / Math.max(1, outerTd.getSize()));
+        while (block.size() < blockSize && children[0].hasNext()) {
+            Tuple t = children[0].next();
+            Tuple copy = new Tuple(outerTd);
+            for (int i = 0; i < outerTd.numFields(); i ++ ) copy.setField(i, t.getField(i));
+            block.add(copy);
         }
+        return !block.isEmpty();
     }
 
     public void close() {
@@ -104,6 +155,13 @@ public class Join extends Operator {
      * satisfies the join predicate. There are many possible implementations;
      * the simplest is a nested loops join.
      * <p>
+     * This one is a block nested loops join: the inner relation is scanned
+     * once per block of outer tuples instead of once per outer tuple, so a
+     * large inner relation is not read from disk over and over when the
+     * buffer pool cannot hold it.  The price is a block of outer tuples in
+     * memory, and results in inner relation order within each block; see
+     * {@link #Join(JoinPredicate, OpIterator, OpIterator, int)}.
+     * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
      * relation. Therefore, if an equality predicate is used there will be two
@@ -118,29 +176,27 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if (tuple == null) return null;
-        while (true) {
-            if (children[1].hasNext()) {
-                Tuple tuple2 = children[1].next();
-                if (predicate.filter(tuple, tuple2)) {
-                    // System.out.println("hhhhh" + tuple);
-                    // System.out.println("jjjjj" + tuple2);
-                    Tuple res = new Tuple(TupleDesc.merge(tuple.getTupleDesc(), tuple2.getTupleDesc()));
-                    for (int i = 0; i < (tuple.getTupleDesc().numFields() + tuple2.getTupleDesc().numFields()); i ++ ) {
-                        if (i < tuple.getTupleDesc().numFields()) {
-                            res.setField(i, tuple.getField(i));
-                        } else {
-                            res.setField(i, tuple2.getField(i - tuple.getTupleDesc().numFields()));
+        while (!block.isEmpty()) {
+            if (inner != null) {
+                while (next < block.size()) {
+                    Tuple tuple = block.get(next ++ );
+                    if (predicate.filter(tuple, inner)) {
+                        int n1 = tuple.getTupleDesc().numFields();
+                        Tuple res = new Tuple(td);
+                        for (int i = 0; i < td.numFields(); i ++ ) {
+                            res.setField(i, i < n1 ? tuple.getField(i) : inner.getField(i - n1));
                         }
+                        return res;
                     }
-                    // System.out.println(res);
-                    return res;
                 }
-            } else if (children[0].hasNext()) {
-                tuple = children[0].next();
-                children[1].rewind();
+            }
+            if (children[1].hasNext()) {
+                inner = children[1].next();
+                next = 0;
             } else {
-                break;
+                inner = null;
+                if (!fillBlock()) break;
+                children[1].rewind();
             }
         }
         return null;
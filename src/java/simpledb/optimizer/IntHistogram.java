@@ -63,6 +63,14 @@ public class IntHistogram {
         all ++;
     }
 
+    /**
+     * Adds count occurrences of v at once.
+     */
+    void addValues(int v, int count) {
+        intArr[(v - min) / width] += count;
+        all += count;
+    }
+
     /**
      * Estimate the selectivity of a particular predicate and operand on this table.
      * 
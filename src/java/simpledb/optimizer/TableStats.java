@@ -26,7 +26,7 @@ public class TableStats {
 
     private static final ConcurrentMap<String, TableStats> statsMap = new ConcurrentHashMap<>();
 
-    static final int IOCOSTPERPAGE = 1000;
+    public static final int IOCOSTPERPAGE = 1000;
 
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
@@ -169,6 +169,20 @@ public class TableStats {
 
     }
 
+    /**
+     * Creates a TableStats from statistics collected elsewhere, e.g. while
+     * the table was loaded, without scanning the table.
+     *
+     * @param hash map from field index to its IntHistogram or StringHistogram
+     */
+    TableStats(int tableid, int ioCostPerPage, int pageNum, int tupleNum, HashMap<Integer, Object> hash) {
+        this.tableId = tableid;
+        this.ioCostPerPage = ioCostPerPage;
+        this.pageNum = pageNum;
+        this.tupleNum = tupleNum;
+        this.hash = hash;
+    }
+
     /**
      * Estimates the cost of sequentially scanning the file, given that the cost
      * to read a page is costPerPageIO. You can assume that there are no seeks
@@ -0,0 +1,151 @@
+package simpledb.optimizer;
+
+import simpledb.common.Type;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.TupleDesc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Collects the statistics of a table from its encoded records while the
+ * table is being written by HeapFileEncoder, so that the TableStats of a
+ * freshly loaded table need no scan at all.
+ * <p>
+ * An IntHistogram has to know the range of its values up front, which a
+ * single pass does not.  Integer fields are therefore first counted in a
+ * fine-grained histogram whose bucket width doubles whenever a value falls
+ * outside of it; {@link #build} folds it into an IntHistogram over the
+ * actual min and max.  While the values of a column lie in a range of fewer
+ * than FINE_BUCKETS integers the counts are exact, otherwise each fine bucket
+ * is counted at its midpoint.
+ */
+public class TableStatsCollector implements HeapFileEncoder.RecordListener {
+
+    private static final int FINE_BUCKETS = 8192;
+
+    // types
+    private final Type[] types;
+
+    // offsets of the fields in a record
+    private final int[] offsets;
+
+    // field index -> Sketch for int fields, StringHistogram for string fields
+    private final Object[] columns;
+
+    // tupleNum
+    private int tupleNum;
+
+    public TableStatsCollector(TupleDesc td) {
+        int n = td.numFields();
+        types = new Type[n];
+        offsets = new int[n];
+        columns = new Object[n];
+        int offset = 0;
+        for (int i = 0; i < n; i ++ ) {
+            types[i] = td.getFieldType(i);
+            offsets[i] = offset;
+            offset += types[i].getLen();
+            columns[i] = types[i] == Type.INT_TYPE ? new Sketch() : new StringHistogram(TableStats.NUM_HIST_BINS);
+        }
+        tupleNum = 0;
+    }
+
+    public void record(ByteBuffer records, int offset) {
+        for (int i = 0; i < types.length; i ++ ) {
+            int pos = offset + offsets[i];
+            if (types[i] == Type.INT_TYPE) {
+                ((Sketch) columns[i]).add(records.getInt(pos));
+            } else {
+                // StringHistogram only looks at the first four characters
+                int len = Math.min(4, Math.max(0, records.getInt(pos)));
+                byte[] prefix = new byte[len];
+                for (int j = 0; j < len; j ++ ) prefix[j] = records.get(pos + 4 + j);
+                ((StringHistogram) columns[i]).addValue(new String(prefix, StandardCharsets.ISO_8859_1));
+            }
+        }
+        tupleNum ++;
+    }
+
+    /**
+     * @return the number of records seen so far
+     */
+    public int totalTuples() {
+        return tupleNum;
+    }
+
+    /**
+     * Returns the statistics of the table, as the TableStats constructor
+     * would compute them by scanning the numPages pages of the table.
+     */
+    public TableStats build(int tableid, int ioCostPerPage, int numPages) {
+        HashMap<Integer, Object> hash = new HashMap<>();
+        for (int i = 0; i < types.length; i ++ ) {
+            if (types[i] == Type.INT_TYPE) {
+                hash.put(i, ((Sketch) columns[i]).toHistogram());
+            } else {
+                hash.put(i, columns[i]);
+            }
+        }
+        // like the scanning constructor, pageNum is the last page with tuples
+        int pageNum = tupleNum == 0 ? 0 : Math.max(0, numPages - 1);
+        return new TableStats(tableid, ioCostPerPage, pageNum, tupleNum, hash);
+    }
+
+    /**
+     * Equi-width histogram with FINE_BUCKETS buckets of a power-of-two width
+     * that moves and widens to take in any value.  The base is a multiple of the width,
+     * so when the width doubles every old bucket falls into one new bucket.
+     */
+    private static class Sketch {
+
+        private final int[] counts = new int[FINE_BUCKETS];
+
+        private long base;
+        private long width = 1;
+        private int min = Integer.MAX_VALUE;
+        private int max = Integer.MIN_VALUE;
+
+        void add(int v) {
+            if (min > max) {
+                base = v;
+            } else if (v < base || v >= base + FINE_BUCKETS * width) {
+                widen(Math.min(min, v), Math.max(max, v));
+            }
+            counts[(int) ((v - base) / width)] ++;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+
+        private void widen(long lo, long hi) {
+            // move the base down if that is enough, otherwise double the width
+            long newWidth = width;
+            long newBase = Math.floorDiv(lo, newWidth) * newWidth;
+            while (hi >= newBase + FINE_BUCKETS * newWidth) {
+                newWidth *= 2;
+                newBase = Math.floorDiv(lo, newWidth) * newWidth;
+            }
+            int[] old = counts.clone();
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < FINE_BUCKETS; i ++ ) {
+                if (old[i] == 0) continue;
+                counts[(int) ((base + i * width - newBase) / newWidth)] += old[i];
+            }
+            base = newBase;
+            width = newWidth;
+        }
+
+        IntHistogram toHistogram() {
+            if (min > max) return new IntHistogram(TableStats.NUM_HIST_BINS, 0, 0);
+            IntHistogram hist = new IntHistogram(TableStats.NUM_HIST_BINS, min, max);
+            for (int i = 0; i < FINE_BUCKETS; i ++ ) {
+                if (counts[i] == 0) continue;
+                long v = width == 1 ? base + i : base + i * width + width / 2;
+                hist.addValues((int) Math.max(min, Math.min(max, v)), counts[i]);
+            }
+            return hist;
+        }
+    }
+}
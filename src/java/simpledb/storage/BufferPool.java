@@ -10,9 +10,20 @@ import simpledb.transaction.TransactionId;
 
 import javax.xml.crypto.Data;
 import java.io.*;
+import java.lang.ref.WeakReference;
 
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -39,19 +50,165 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    // PageArr
-    private ArrayList<Page> pageArr;
+    /** System property naming the page replacement policy of the default
+    database, see {@link ReplacementPolicy#forName}. */
+    public static final String POLICY_PROPERTY = "simpledb.storage.BufferPool.policy";
 
-    private ReentrantLock lock;
+    // Partitions never hold fewer frames than this on average
+    private static final int MIN_PAGES_PER_PARTITION = 16;
 
-    // PageMap from integer to Page
-    private HashMap<PageId, Page> pageMap;
+    private static final int MAX_PARTITIONS = 64;
+
+    // Hash-striped frame table, see partitionOf()
+    private final Partition[] partitions;
+
+    // Number of resident pages over all partitions
+    private final AtomicInteger numResident;
+
+    // Partition the next cross-partition eviction starts from
+    private final AtomicInteger evictHand;
 
     // Maximum size
     private int maxSize;
 
     private LockManager lockManager;
 
+    /** System property with the read-ahead window, in pages, of new buffer
+    pools; 0 turns read-ahead off. See {@link #setReadAheadWindow}. */
+    public static final String READ_AHEAD_PROPERTY = "simpledb.storage.BufferPool.readAhead";
+
+    private static final int DEFAULT_READ_AHEAD = 8;
+
+    // Threads and queued requests of the read-ahead I/O pool
+    private static final int READ_AHEAD_THREADS = 2;
+    private static final int READ_AHEAD_QUEUE = 256;
+
+    // I/O threads performing read-ahead, shared by all buffer pools
+    private static ExecutorService readAheadPool;
+
+    // Pages to read ahead of a sequential scan
+    private volatile int readAheadWindow;
+
+    private final ReadAheadStats readAheadStats;
+
+    /** System property that puts new buffer pools in STEAL/NO-FORCE mode,
+    see {@link #setSteal}. */
+    public static final String STEAL_PROPERTY = "simpledb.storage.BufferPool.steal";
+
+    // How often the page cleaner looks for pages to write, in milliseconds
+    private static final long CLEANER_INTERVAL = 100;
+
+    // STEAL/NO-FORCE instead of NO-STEAL/FORCE
+    private volatile boolean steal;
+
+    // Clean pages whose contents are newer than the file (NO FORCE), each
+    // with the sequence number of the change; see markUnwritten()
+    private final ConcurrentHashMap<PageId, Long> unwritten;
+
+    private final AtomicLong unwrittenSeq;
+
+    // dirty page table: pages with logged changes that may not be in the
+    // file yet -> LSN at or before the first such log record
+    private final ConcurrentHashMap<PageId, Long> recLsn;
+
+    /** System property that puts new buffer pools in MVCC mode, see
+    {@link #setMvcc}. */
+    public static final String MVCC_PROPERTY = "simpledb.storage.BufferPool.mvcc";
+
+    // Sequential scans read snapshots instead of locking pages
+    private volatile boolean mvcc;
+
+    // Committed versions of the pages changed while in MVCC mode
+    private final VersionStore versionStore;
+
+    // Wakes the page cleaner up early; null until the cleaner is started
+    private Object cleanerSignal;
+
+    /**
+     * One stripe of the frame table.  Every page id hashes to exactly one
+     * partition, so hits on pages of different partitions only take
+     * different locks.  Each partition runs its own replacement policy.
+     */
+    private class Partition {
+        final ReentrantLock lock = new ReentrantLock();
+
+        // PageMap from PageId to Page
+        final HashMap<PageId, Page> pageMap = new HashMap<>();
+
+        // Replacement policy, tracks the pages in pageMap
+        final ReplacementPolicy policy;
+
+        // Reads in progress, see load()
+        final HashMap<PageId, CompletableFuture<Page>> loading = new HashMap<>();
+
+        // Resident pages read ahead and not requested yet
+        final HashSet<PageId> prefetched = new HashSet<>();
+
+        Partition(String policyName) {
+            policy = ReplacementPolicy.forName(policyName);
+        }
+
+        // caller holds lock
+        void add(Page page) {
+            pageMap.put(page.getId(), page);
+            policy.pageAdded(page.getId());
+        }
+
+        // caller holds lock; returns the page that stays resident
+        Page replace(Page page, boolean replace) {
+            PageId pid = page.getId();
+            policy.pageAccessed(pid);
+            if (replace) {
+                pageMap.put(pid, page);
+                return page;
+            }
+            return pageMap.get(pid);
+        }
+
+        // caller holds lock; counts a read-ahead hit
+        void accessed(PageId pid) {
+            policy.pageAccessed(pid);
+            if (!prefetched.isEmpty() && prefetched.remove(pid)) readAheadStats.hits.incrementAndGet();
+        }
+
+        // caller holds lock; evicted tells the policy the page was its victim
+        boolean remove(PageId pid, boolean evicted) {
+            if (pageMap.remove(pid) == null) return false;
+            if (!prefetched.isEmpty() && prefetched.remove(pid)) readAheadStats.wasted.incrementAndGet();
+            if (evicted) policy.pageEvicted(pid);
+            else policy.pageRemoved(pid);
+            if (mvcc) versionStore.forget(pid);
+            numResident.decrementAndGet();
+            return true;
+        }
+
+        // caller holds lock; returns false if every page here is dirty or
+        // unwritten
+        boolean evictOne() {
+            PageId victim = policy.chooseVictim(pid -> pageMap.get(pid).isDirty() == null && !unwritten.containsKey(pid));
+            return victim != null && remove(victim, true);
+        }
+
+        // resident page, without counting an access
+        Page peek(PageId pid) {
+            lock.lock();
+            try {
+                return pageMap.get(pid);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // copy of the resident pages, taken under the partition lock
+        List<Page> pages() {
+            lock.lock();
+            try {
+                return new ArrayList<>(pageMap.values());
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -59,12 +216,36 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, System.getProperty(POLICY_PROPERTY));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts
+     * them according to the named replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyName the replacement policy, see {@link ReplacementPolicy#forName}
+     */
+    public BufferPool(int numPages, String policyName) {
         // some code goes here
-        pageArr = new ArrayList<>();
-        pageMap = new HashMap<>();
+        int n = 1;
+        while (n * 2 <= MAX_PARTITIONS && n * 2 * MIN_PAGES_PER_PARTITION <= numPages) n *= 2;
+        partitions = new Partition[n];
+        for (int i = 0; i < n; i ++ ) {
+            partitions[i] = new Partition(policyName);
+        }
+        numResident = new AtomicInteger(0);
+        evictHand = new AtomicInteger(0);
         maxSize = numPages;
         lockManager = new LockManager();
-        lock = new ReentrantLock();
+        readAheadStats = new ReadAheadStats();
+        setReadAheadWindow(Integer.getInteger(READ_AHEAD_PROPERTY, DEFAULT_READ_AHEAD));
+        unwritten = new ConcurrentHashMap<>();
+        unwrittenSeq = new AtomicLong(0);
+        recLsn = new ConcurrentHashMap<>();
+        setSteal(Boolean.getBoolean(STEAL_PROPERTY));
+        versionStore = new VersionStore(lockManager);
+        setMvcc(Boolean.getBoolean(MVCC_PROPERTY));
     }
     
     public static int getPageSize() {
@@ -81,40 +262,156 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    private Partition partitionOf(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return partitions[h & (partitions.length - 1)];
+    }
+
     Page get(PageId pid) {
-        lock.lock();
-        if (pageMap.containsKey(pid)) {
-            Page page = pageMap.get(pid);
-            int index = pageArr.indexOf(page);
-            pageArr.remove(index);
-            pageArr.add(page);
-            pageMap.put(pid, page);
-            lock.unlock();
+        Partition part = partitionOf(pid);
+        part.lock.lock();
+        try {
+            Page page = part.pageMap.get(pid);
+            if (page != null) part.accessed(pid);
             return page;
+        } finally {
+            part.lock.unlock();
         }
-        lock.unlock();
-        return null;
     }
 
     void put(Page page, TransactionId tid) throws IOException, DbException {
-        lock.lock();
-        if (pageMap.containsKey(page.getId())) {
-            PageId pid = page.getId();
-            pageArr.remove(pageArr.indexOf(page));
-            pageArr.add(page);
-            pageMap.put(pid, page);
-        } else {
-            if (pageArr.size() < maxSize) {
-                pageArr.add(page);
-                pageMap.put(page.getId(), page);
-            } else {
-                evictPage();
-                pageArr.add(page);
-                pageMap.put(page.getId(), page);
+        install(page, true, tid);
+    }
+
+    /**
+     * Makes the page resident, evicting another one if the pool is full.
+     *
+     * @param replace whether the page replaces a resident page with the same id
+     * @param tid the transaction the page is installed for, null for read-ahead
+     * @return the page that is resident once this returns
+     */
+    private Page install(Page page, boolean replace, TransactionId tid) throws DbException {
+        PageId pid = page.getId();
+        Partition part = partitionOf(pid);
+        part.lock.lock();
+        try {
+            if (part.pageMap.containsKey(pid)) {
+                return part.replace(page, replace);
+            }
+            // reserve a frame; if the pool is full, give one back from this
+            // partition before bothering any other
+            if (numResident.incrementAndGet() <= maxSize || part.evictOne()) {
+                part.add(page);
+                return page;
+            }
+        } finally {
+            part.lock.unlock();
+        }
+
+        // every page of this partition is dirty, take the frame from another
+        // one. Partition locks are never nested, so this cannot deadlock.
+        try {
+            evictPage(tid);
+        } catch (DbException e) {
+            numResident.decrementAndGet();
+            throw e;
+        }
+        part.lock.lock();
+        try {
+            if (part.pageMap.containsKey(pid)) {
+                numResident.decrementAndGet();
+                return part.replace(page, replace);
+            }
+            part.add(page);
+            return page;
+        } finally {
+            part.lock.unlock();
+        }
+    }
+
+    /**
+     * Reads a page that is not resident and makes it resident.  Concurrent
+     * misses on the same page share a single read: the first one registers
+     * the load in its partition and performs it, the others wait for it and
+     * all of them get the same Page object.
+     *
+     * @param prefetch whether this is a read-ahead; read-aheads neither wait
+     *        for nor touch a page that is already resident or being read
+     * @return the resident page, null for a read-ahead that had nothing to do
+     */
+    private Page load(DbFile file, PageId pid, boolean prefetch, TransactionId tid) throws DbException {
+        Partition part = partitionOf(pid);
+        CompletableFuture<Page> inFlight;
+        part.lock.lock();
+        try {
+            Page page = part.pageMap.get(pid);
+            if (page != null) {
+                if (prefetch) return null;
+                part.accessed(pid);
+                return page;
+            }
+            inFlight = part.loading.get(pid);
+            if (inFlight == null) {
+                part.loading.put(pid, new CompletableFuture<>());
+            } else if (prefetch) {
+                return null;
+            }
+        } finally {
+            part.lock.unlock();
+        }
+        if (inFlight != null) {
+            Page page = await(inFlight);
+            part.lock.lock();
+            try {
+                // the read may have been a read-ahead
+                if (part.pageMap.get(pid) == page) part.accessed(pid);
+            } finally {
+                part.lock.unlock();
+            }
+            return page;
+        }
+
+        Page page = null;
+        Throwable error = null;
+        try {
+            Page read = file.readPage(pid);
+            page = install(read, false, tid);
+            if (prefetch && page == read) {
+                readAheadStats.loaded.incrementAndGet();
+                part.lock.lock();
+                try {
+                    if (part.pageMap.get(pid) == read) part.prefetched.add(pid);
+                } finally {
+                    part.lock.unlock();
+                }
+            }
+            return page;
+        } catch (Throwable e) {
+            error = e;
+            throw e;
+        } finally {
+            part.lock.lock();
+            try {
+                inFlight = part.loading.remove(pid);
+            } finally {
+                part.lock.unlock();
             }
+            if (error == null) inFlight.complete(page);
+            else inFlight.completeExceptionally(error);
+        }
+    }
+
+    private static Page await(CompletableFuture<Page> inFlight) throws DbException {
+        try {
+            return inFlight.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof DbException) throw (DbException) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new DbException("loading the page failed: " + e.getCause());
         }
-        lock.unlock();
     }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -133,6 +430,37 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
+        Page page = lockPage(tid, pid, perm);
+        if (perm == Permissions.READ_WRITE) beforeWrite(tid, page);
+        return page;
+    }
+
+    /**
+     * Like getPage() for writing, for a caller that only looks at the page
+     * to decide whether to change it: the page is locked for writing, but a
+     * caller that goes on to change it must call {@link #beforeWrite} first.
+     * This way, in MVCC mode, looking does not abort tid over a change other
+     * transactions made to the page after its snapshot.
+     */
+    Page getPageToInspect(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        return lockPage(tid, pid, Permissions.READ_WRITE);
+    }
+
+    /**
+     * Called before tid changes a page it locked for writing.  In MVCC mode
+     * this keeps the committed version of the page for snapshot reads.
+     *
+     * @throws TransactionAbortedException if another transaction committed a
+     *         change to the page after the snapshot of tid
+     */
+    void beforeWrite(TransactionId tid, Page page) throws TransactionAbortedException {
+        if (mvcc && page.getId() instanceof HeapPageId) versionStore.beforeWrite(tid, page);
+    }
+
+    // locks a page for tid and returns it, reading it if it is not resident
+    private Page lockPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
         DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
 
         // apply for lock
@@ -143,20 +471,334 @@ public class BufferPool {
                 lockManager.getWriteLock(tid, pid);
             }
         } catch (InterruptedException e) {
-            System.out.println("interruption.");
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
         }
 
         Page page = get(pid);
         if (page != null) return page;
+        return load(file, pid, false, tid);
+    }
 
-        page = file.readPage(pid);
+    /**
+     * Retrieves a page for reading as of the snapshot of tid, without a
+     * lock, when the pool runs in MVCC mode; otherwise this is getPage() for
+     * reading.  The snapshot is taken on the first call for tid and sees
+     * every page as committed by the transactions that committed before it.
+     * A page tid has changed itself is seen as tid left it.  The page
+     * returned must not be changed.
+     *
+     * @param tid the ID of the transaction reading the page
+     * @param pid the ID of the requested page
+     */
+    public Page getSnapshotPage(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        if (!mvcc || (lockManager.isWriteLocked(pid) && lockManager.check(tid, pid))) {
+            return getPage(tid, pid, Permissions.READ_ONLY);
+        }
+        long snapshot = versionStore.snapshot(tid);
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        while (true) {
+            Page version = versionStore.visible(pid, snapshot);
+            if (version != null) return version;
+            Page page = get(pid);
+            if (page == null) page = load(file, pid, false, tid);
+            // a writer starts the chain of the page before it changes it, so
+            // without a chain the page has the committed contents
+            versionStore.keep(page);
+        }
+    }
+
+    /**
+     * Adds a page that was just allocated in its file to the buffer pool,
+     * locked for writing by tid, without reading it from disk.  The page is
+     * marked dirty by tid: until it is flushed it only exists in memory.
+     *
+     * @param tid the ID of the transaction that allocated the page
+     * @param page the new page
+     * @return the resident page
+     */
+    public Page newPage(TransactionId tid, Page page)
+        throws TransactionAbortedException, DbException {
         try {
-            put(page, tid);
-        } catch(Exception e) {
+            lockManager.getWriteLock(tid, page.getId());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        }
+        page.markDirty(true, tid);
+        Page resident = install(page, false, tid);
+        beforeWrite(tid, resident);
+        return resident;
+    }
+
+    /**
+     * Asynchronously reads a page into the buffer pool, for a caller that
+     * expects to need it soon (e.g. a sequential scan).  No lock is taken on
+     * behalf of any transaction; the page only becomes resident, clean, as
+     * if it had been read by getPage().  Read-ahead is best effort: the
+     * request is dropped if the page is already resident or being read, if
+     * the I/O threads are too far behind, or if no page can be evicted.
+     *
+     * @param file the file the page belongs to
+     * @param pid the page to read
+     */
+    public void prefetch(DbFile file, PageId pid) {
+        if (readAheadWindow <= 0) return;
+        readAheadStats.issued.incrementAndGet();
+        try {
+            readAheadPool().execute(() -> {
+                try {
+                    load(file, pid, true, null);
+                } catch (Exception e) {
+                    // read-ahead is only a hint, the scan reads the page itself
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the I/O threads are behind, skip this one
+        }
+    }
+
+    private static synchronized ExecutorService readAheadPool() {
+        if (readAheadPool == null) {
+            ThreadFactory daemons = r -> {
+                Thread t = new Thread(r, "simpledb-read-ahead");
+                t.setDaemon(true);
+                return t;
+            };
+            readAheadPool = new ThreadPoolExecutor(READ_AHEAD_THREADS, READ_AHEAD_THREADS,
+                    0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(READ_AHEAD_QUEUE), daemons);
+        }
+        return readAheadPool;
+    }
+
+    /**
+     * @return the number of pages a sequential scan reads ahead
+     */
+    public int getReadAheadWindow() {
+        return readAheadWindow;
+    }
+
+    /**
+     * Sets the number of pages a sequential scan reads ahead.  The window is
+     * capped at a quarter of the pool so read-ahead cannot flush out the
+     * pages the scan is working on; 0 turns read-ahead off.
+     */
+    public void setReadAheadWindow(int pages) {
+        readAheadWindow = Math.max(0, Math.min(pages, maxSize / 4));
+    }
+
+    /**
+     * Switches between NO-STEAL/FORCE, the default, and STEAL/NO-FORCE.
+     * <p>
+     * With NO STEAL a dirty page stays in the pool until its transaction
+     * completes, so a transaction cannot dirty more pages than the pool
+     * holds, and commit writes every page (FORCE).  With STEAL, eviction may
+     * write out a dirty page of the evicting transaction, logging it first
+     * like any flush, so that abort and recovery can undo it.  With NO FORCE
+     * commit only forces the log, and the pages stay in the pool until
+     * eviction or the page cleaner, a background thread, writes them.
+     *
+     * @param steal true for STEAL/NO-FORCE
+     */
+    public synchronized void setSteal(boolean steal) {
+        this.steal = steal;
+        if (steal && cleanerSignal == null) {
+            cleanerSignal = new Object();
+            Thread cleaner = new Thread(new PageCleaner(this, cleanerSignal), "simpledb-page-cleaner");
+            cleaner.setDaemon(true);
+            cleaner.start();
+        }
+    }
+
+    /**
+     * @return whether this pool runs in STEAL/NO-FORCE mode
+     */
+    public boolean isSteal() {
+        return steal;
+    }
+
+    /**
+     * Turns multi-version concurrency control on or off; switch it before
+     * transactions run.
+     * <p>
+     * In MVCC mode sequential scans of heap files read a snapshot through
+     * {@link #getSnapshotPage}, without page locks, so readers neither wait
+     * for writers nor hold them up.  The pool keeps the committed versions
+     * of the heap pages that are changed for as long as a snapshot may need
+     * them.  Writers still lock the pages they change, and a writer that
+     * changes a page another transaction committed a change to after its
+     * snapshot aborts: the first committer wins.
+     *
+     * @param mvcc true for MVCC
+     */
+    public void setMvcc(boolean mvcc) {
+        this.mvcc = mvcc;
+    }
+
+    /**
+     * @return whether this pool runs in MVCC mode
+     */
+    public boolean isMvcc() {
+        return mvcc;
+    }
+
+    /**
+     * @return the version counters of this buffer pool
+     */
+    public VersionStats getVersionStats() {
+        return versionStore.getStats();
+    }
+
+    /**
+     * Drops the page versions no running snapshot can see.  This happens as
+     * transactions complete, once enough pages have versions.
+     */
+    public void collectVersions() {
+        versionStore.collect();
+    }
+
+    /**
+     * The page cleaner of a STEAL/NO-FORCE pool.  It only holds the pool
+     * weakly and stops once the pool is gone.
+     */
+    private static class PageCleaner implements Runnable {
+        private final WeakReference<BufferPool> pool;
+        private final Object signal;
+
+        PageCleaner(BufferPool pool, Object signal) {
+            this.pool = new WeakReference<>(pool);
+            this.signal = signal;
+        }
+
+        public void run() {
+            while (true) {
+                BufferPool bp = pool.get();
+                if (bp == null) return;
+                if (bp.steal) bp.cleanPages();
+                bp = null;
+                synchronized (signal) {
+                    try {
+                        signal.wait(CLEANER_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the unwritten pages that no transaction holds a write lock on, so
+     * that eviction finds clean pages.  Committed pages need no log record,
+     * it was forced on commit.
+     */
+    private void cleanPages() {
+        List<Page> pages = new ArrayList<>();
+        for (PageId pid : unwritten.keySet()) {
+            if (lockManager.isWriteLocked(pid)) continue;
+            Page page = partitionOf(pid).peek(pid);
+            if (page != null && page.isDirty() == null) pages.add(page);
+        }
+        try {
+            writeCommitted(pages);
+        } catch (IOException e) {
             e.printStackTrace();
-            throw new DbException("a put exception in the bufferPool");
         }
-        return page;
+    }
+
+    /**
+     * Writes clean pages that are newer than the file, each under a read lock
+     * of its own so that no transaction changes the page during the write.
+     * Recovery only repairs the byte ranges the log has records of, so a
+     * page must not reach the file with changes that were never logged.
+     * Pages that cannot be locked right away are skipped.
+     */
+    private void writeCommitted(List<Page> pages) throws IOException {
+        TransactionId writer = new TransactionId();
+        try {
+            for (Page page : pages) {
+                PageId pid = page.getId();
+                if (!lockManager.tryReadLock(writer, pid)) continue;
+                try {
+                    if (page.isDirty() == null && partitionOf(pid).peek(pid) == page) {
+                        writePages(Collections.singletonList(page));
+                    }
+                } finally {
+                    lockManager.release(writer, pid);
+                }
+            }
+        } finally {
+            lockManager.release(writer);
+        }
+    }
+
+    /**
+     * Wakes the page cleaner up, if there is one, so that it writes out the
+     * committed pages the file does not have yet.
+     */
+    void cleanInBackground() {
+        Object signal = cleanerSignal;
+        if (signal == null) return;
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * @return a copy of the dirty page table: the pages with logged changes
+     *     that may not be in their file yet, each with an LSN at or before
+     *     the first log record of such a change
+     */
+    Map<PageId, Long> dirtyPageTable() {
+        return new HashMap<>(recLsn);
+    }
+
+    // the page is clean but the file has an older version of it
+    private void markUnwritten(PageId pid) {
+        unwritten.put(pid, unwrittenSeq.incrementAndGet());
+    }
+
+    /**
+     * @return the read-ahead counters of this buffer pool
+     */
+    public ReadAheadStats getReadAheadStats() {
+        return readAheadStats;
+    }
+
+    /**
+     * @return the lock wait counters of this buffer pool
+     */
+    public LockStats getLockStats() {
+        return lockManager.getStats();
+    }
+
+    /**
+     * Sets how long a transaction waits for a page lock before it aborts.
+     * Deadlocks are detected without a timeout, so by default there is none.
+     *
+     * @param millis the timeout in milliseconds, 0 for none
+     */
+    public void setLockTimeout(long millis) {
+        lockManager.setLockTimeout(millis);
+    }
+
+    /**
+     * Turns deadlock detection on or off.  Without it deadlocks only end
+     * when a lock timeout is set and expires.
+     */
+    public void setDeadlockDetection(boolean on) {
+        lockManager.setDeadlockDetection(on);
+    }
+
+    /**
+     * Sets how many pages of a table a transaction may lock before its page
+     * locks are escalated to a lock on the table, see {@link LockManager}.
+     *
+     * @param pages the threshold, 0 to never escalate
+     */
+    public void setLockEscalationThreshold(int pages) {
+        lockManager.setEscalationThreshold(pages);
     }
 
     public void print(TransactionId tid, int tableId) throws DbException, TransactionAbortedException {
@@ -182,6 +824,14 @@ public class BufferPool {
         lockManager.release(tid, pid);
     }
 
+    /**
+     * @return whether tid holds a lock on the page itself; unlike holdsLock(),
+     *         a lock on its table does not count
+     */
+    boolean holdsPageLock(TransactionId tid, PageId pid) {
+        return lockManager.holdsPageLock(tid, pid);
+    }
+
     /**
      * Release all locks associated with a given transaction.
      *
@@ -206,26 +856,83 @@ public class BufferPool {
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
+     * @throws UncheckedIOException if the commit could not be logged, in
+     *         which case the transaction was aborted instead, or if pages of
+     *         the committed transaction could not be written; those stay
+     *         dirty until they are flushed
      */
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        IOException failure = null;
         if (commit) {
+            // group commit: the update records and the commit record are
+            // forced together with those of concurrent committers, and the
+            // pages are written (FORCE) once the commit is durable
+            List<Page> dirty = dirtyPages(tid);
             try {
-                flushPages(tid);
-            } catch (Exception e) {
-                System.out.println("error in the flushing pages between transaction commit ");
+                logUpdates(dirty);
+                Database.getLogFile().logCommit(tid);
+            } catch (IOException e) {
+                // the commit may not be durable, so it must not be seen
+                try {
+                    Database.getLogFile().logAbort(tid);
+                } catch (IOException | RuntimeException e2) {
+                    e.addSuppressed(e2);
+                }
+                transactionComplete(tid, false);
+                throw new UncheckedIOException(e);
+            }
+            if (steal) {
+                // NO FORCE: the log has the pages, write them later
+                for (Page page : dirty) {
+                    markUnwritten(page.getId());
+                    page.markDirty(false, null);
+                }
+            } else {
+                try {
+                    writePages(dirty);
+                } catch (IOException e) {
+                    // the commit stands, recovery redoes the pages
+                    failure = e;
+                }
             }
+            // the committed contents are the before image of the next
+            // transaction; this only drops the copies taken on first write
+            ArrayList<PageId> pages = lockManager.getPages(tid);
+            Set<PageId> changed = versionStore.changedPages(tid);
+            List<Page> written = new ArrayList<>();
+            for (PageId pid : pages == null ? new ArrayList<PageId>() : pages) {
+                Page page = get(pid);
+                if (page != null) page.setBeforeImage();
+                if (changed.contains(pid)) {
+                    // an evicted page was written out (STEAL)
+                    written.add(page != null ? page
+                            : Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid));
+                }
+            }
+            versionStore.publish(written);
         } else {
+            // pages written out before the abort were restored by
+            // LogFile.rollback, the others are still dirty
             ArrayList<PageId> pages = lockManager.getPages(tid);
-            for (PageId pid : pages) {
-                if (pageMap.get(pid).isDirty() != null) {
-                    discardPage(pid);
+            for (PageId pid : pages == null ? new ArrayList<PageId>() : pages) {
+                Page page = get(pid);
+                if (page != null && page.isDirty() != null) {
+                    if (steal) {
+                        // the file may be older than the committed version
+                        // (NO FORCE), or have a version the cleaner wrote
+                        // while this transaction was changing the page
+                        restore(page);
+                    } else {
+                        discardPage(pid);
+                    }
                 }
             }
         }
+        versionStore.end(tid);
         lockManager.release(tid);
-
+        if (failure != null) throw new UncheckedIOException(failure);
     }
 
     /**
@@ -254,6 +961,25 @@ public class BufferPool {
         }
     }
 
+    /**
+     * Add a batch of tuples to the specified table on behalf of transaction
+     * tid.  Behaves like calling {@link #insertTuple} for each tuple, but the
+     * file fills its pages directly: every affected page is locked once, and
+     * is marked dirty and cached once, however many tuples went into it.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, Iterator<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        List<Page> pages = Database.getCatalog().getDatabaseFile(tableId).insertTuples(tid, tuples);
+        for (Page page : pages) {
+            page.markDirty(true, tid);
+            put(page, tid);
+        }
+    }
+
     /**
      * Remove the specified tuple from the buffer pool.
      * Will acquire a write lock on the page the tuple is removed from and any
@@ -286,13 +1012,28 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        Iterator<Map.Entry<PageId, Page>> iterator = pageMap.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<PageId, Page> next = iterator.next();
-            if (next.getValue().isDirty() != null) {
-                flushPage(next.getKey());
+        List<Page> dirty = new ArrayList<>();
+        for (Partition part : partitions) {
+            for (Page page : part.pages()) {
+                if (page.isDirty() != null || unwritten.containsKey(page.getId())) dirty.add(page);
             }
         }
+        flushPages(dirty);
+    }
+
+    // replaces a page dirtied by an aborted transaction with its before image
+    private void restore(Page page) {
+        PageId pid = page.getId();
+        Partition part = partitionOf(pid);
+        part.lock.lock();
+        try {
+            if (part.pageMap.get(pid) == page) {
+                markUnwritten(pid);
+                part.pageMap.put(pid, page.getBeforeImage());
+            }
+        } finally {
+            part.lock.unlock();
+        }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -303,56 +1044,179 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        lock.lock();
-        pageArr.remove(pageMap.get(pid));
-        pageMap.remove(pid);
-        lock.unlock();
+        Partition part = partitionOf(pid);
+        part.lock.lock();
+        try {
+            part.remove(pid, false);
+            // the caller has written or dropped the contents
+            unwritten.remove(pid);
+            recLsn.remove(pid);
+        } finally {
+            part.lock.unlock();
+        }
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        file.writePage(pageMap.get(pid));
-        if (pageMap.get(pid).isDirty() == null) {
-           throw new IOException("the page is not dirty");
-        }
+        Page page = get(pid);
+        if (page == null || (page.isDirty() == null && !unwritten.containsKey(pid))) return;
+        flushPages(Collections.singletonList(page));
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        ArrayList<PageId> pages = lockManager.getPages(tid);
-        for (PageId pid : pages) {
-            if (pageMap.get(pid).isDirty().equals(tid)) {
-                flushPage(pid);
+        // tid holds the write locks of its dirty pages, so the pool monitor
+        // is not needed to keep other transactions off them
+        flushPages(dirtyPages(tid));
+    }
+
+    /**
+     * Writes dirty pages to disk following the write-ahead rule: the update
+     * records of all pages are appended to the log first and the log is
+     * forced once, then the pages are written and marked clean.
+     */
+    private void flushPages(List<Page> pages) throws IOException {
+        if (pages.isEmpty()) return;
+        LogFile log = Database.getLogFile();
+        if (logUpdates(pages)) log.awaitDurable(log.getEndLsn());
+        writePages(pages);
+    }
+
+    // pages of the pool dirtied by tid
+    private List<Page> dirtyPages(TransactionId tid) {
+        List<Page> dirty = new ArrayList<>();
+        ArrayList<PageId> pids = lockManager.getPages(tid);
+        if (pids == null) return dirty;
+        for (PageId pid : pids) {
+            Page page = get(pid);
+            if (page != null && tid.equals(page.isDirty())) dirty.add(page);
+        }
+        return dirty;
+    }
+
+    // appends an UPDATE record for every dirty page, without forcing the
+    // log; returns whether there was any
+    private boolean logUpdates(List<Page> pages) throws IOException {
+        LogFile log = Database.getLogFile();
+        boolean logged = false;
+        for (Page page : pages) {
+            TransactionId dirtier = page.isDirty();
+            if (dirtier != null) {
+                // before the record, so that no checkpoint misses it
+                recLsn.putIfAbsent(page.getId(), log.getEndLsn());
+                log.logWrite(dirtier, page.getBeforeImage(), page);
+                // every change is logged before it leaves the page, and
+                // commit logs the rest
+                if (mvcc) versionStore.changed(dirtier, page.getId());
+                logged = true;
             }
         }
+        return logged;
+    }
+
+    // writes pages whose update records are durable, and marks them clean
+    private void writePages(List<Page> pages) throws IOException {
+        for (Page page : pages) {
+            PageId pid = page.getId();
+            // a commit after this point makes the page unwritten again
+            Long seq = unwritten.get(pid);
+            Long lsn = recLsn.get(pid);
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            file.writePage(page);
+            page.markDirty(false, null);
+            if (seq != null) unwritten.remove(pid, seq);
+            if (lsn != null) recLsn.remove(pid, lsn);
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is chosen by the replacement policy of one partition among
+     * its clean pages; with NO STEAL dirty pages are never evicted, so they
+     * need no flushing.  Partitions are tried in turn until one gives up a
+     * page.  With STEAL, if there is no clean page, a page of the evicting
+     * transaction or an unwritten page no one holds a write lock on is
+     * written out and evicted instead.
+     *
+     * @param tid the evicting transaction, null for read-ahead
+     * @throws DbException if every page in the buffer pool is dirty
      */
-    private synchronized void evictPage() throws DbException {
+    private void evictPage(TransactionId tid) throws DbException {
         // some code goes here
         // not necessary for lab1
-        if (pageArr.size() == 0) throw new DbException("no page in the bufferPool");
-        for (int i = 0; i < pageArr.size(); i ++ ) {
-            if (pageArr.get(i).isDirty() == null && !lockManager.isLocked(pageArr.get(i).getId())) {
-                discardPage(pageArr.get(0).getId());
-                break;
+        int start = evictHand.getAndIncrement();
+        for (int i = 0; i < partitions.length; i ++ ) {
+            Partition part = partitions[Math.floorMod(start + i, partitions.length)];
+            part.lock.lock();
+            try {
+                if (part.evictOne()) return;
+            } finally {
+                part.lock.unlock();
+            }
+        }
+        if (steal && tid != null) {
+            // the page cleaner is behind
+            synchronized (cleanerSignal) {
+                cleanerSignal.notifyAll();
+            }
+            for (int i = 0; i < partitions.length; i ++ ) {
+                Partition part = partitions[Math.floorMod(start + i, partitions.length)];
+                if (steal(part, tid)) return;
+            }
+        }
+        throw new DbException("all pages in the bufferPool are dirty");
+    }
+
+    // writes out and evicts a page of the partition that tid may steal; the
+    // write happens outside the partition lock, as it writes to the log
+    private boolean steal(Partition part, TransactionId tid) throws DbException {
+        Page victim;
+        part.lock.lock();
+        try {
+            PageId pid = part.policy.chooseVictim(p -> {
+                Page page = part.pageMap.get(p);
+                TransactionId dirtier = page.isDirty();
+                // other transactions may be changing their pages right now;
+                // a clean page may just have been written by the cleaner
+                if (dirtier != null) return dirtier.equals(tid);
+                return !unwritten.containsKey(p) || !lockManager.isWriteLocked(p);
+            });
+            if (pid == null) return false;
+            victim = part.pageMap.get(pid);
+        } finally {
+            part.lock.unlock();
+        }
+        if (victim.isDirty() != null || unwritten.containsKey(victim.getId())) {
+            try {
+                if (victim.isDirty() != null) {
+                    flushPages(Collections.singletonList(victim));
+                } else {
+                    writeCommitted(Collections.singletonList(victim));
+                }
+            } catch (IOException e) {
+                throw new DbException("writing page " + victim.getId() + " failed: " + e);
             }
         }
+        PageId pid = victim.getId();
+        part.lock.lock();
+        try {
+            // unless it was changed again meanwhile
+            return part.pageMap.get(pid) == victim && victim.isDirty() == null
+                    && !unwritten.containsKey(pid) && part.remove(pid, true);
+        } finally {
+            part.lock.unlock();
+        }
     }
 
 }
@@ -0,0 +1,89 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement.  Every resident page owns a slot on the
+ * clock with a reference bit; a hit only sets the bit.  To find a victim the
+ * hand sweeps the clock, clearing reference bits, and stops at the first
+ * evictable page whose bit is already clear.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    // slot -> page, null for a free slot
+    private final ArrayList<PageId> slots;
+
+    // slot -> reference bit
+    private final ArrayList<Boolean> referenced;
+
+    // page -> slot
+    private final HashMap<PageId, Integer> slotOf;
+
+    // slots freed by removed pages
+    private final ArrayDeque<Integer> freeSlots;
+
+    // clock hand
+    private int hand;
+
+    public ClockPolicy() {
+        slots = new ArrayList<>();
+        referenced = new ArrayList<>();
+        slotOf = new HashMap<>();
+        freeSlots = new ArrayDeque<>();
+        hand = 0;
+    }
+
+    public void pageAdded(PageId pid) {
+        if (slotOf.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        int slot;
+        if (freeSlots.isEmpty()) {
+            slot = slots.size();
+            slots.add(pid);
+            referenced.add(true);
+        } else {
+            slot = freeSlots.poll();
+            slots.set(slot, pid);
+            referenced.set(slot, true);
+        }
+        slotOf.put(pid, slot);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null) referenced.set(slot, true);
+    }
+
+    public void pageRemoved(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot == null) return;
+        slots.set(slot, null);
+        referenced.set(slot, false);
+        freeSlots.add(slot);
+    }
+
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        int n = slots.size();
+        // the first sweep clears reference bits, the second one is sure to
+        // find an evictable page if there is any
+        for (int i = 0; i < 2 * n; i ++ ) {
+            if (hand >= n) hand = 0;
+            PageId pid = slots.get(hand);
+            if (pid != null) {
+                if (referenced.get(hand)) {
+                    referenced.set(hand, false);
+                } else if (evictable.test(pid)) {
+                    hand ++;
+                    return pid;
+                }
+            }
+            hand ++;
+        }
+        return null;
+    }
+}
@@ -48,6 +48,31 @@ public interface DbFile {
     List<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts all the given tuples to the file on behalf of transaction.
+     * Like {@link #insertTuple}, this acquires locks on the affected pages
+     * and may block.  Implementations should fill each page they touch as far
+     * as possible and lock it only once; this default simply inserts the
+     * tuples one at a time.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add.  Each tuple is updated to reflect that
+     *          it is now stored in this file.
+     * @return The pages that were modified, each listed once
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    default List<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        Map<PageId, Page> pages = new LinkedHashMap<>();
+        while (tuples.hasNext()) {
+            for (Page page : insertTuple(tid, tuples.next())) {
+                pages.put(page.getId(), page);
+            }
+        }
+        return new ArrayList<>(pages.values());
+    }
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
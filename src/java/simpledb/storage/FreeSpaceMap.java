@@ -0,0 +1,227 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile have free slots, one bit
+ * per page, so that inserts can find a page with room without reading the
+ * file and so that slots freed by deletes get reused.
+ * <p>
+ * The map is a hint.  A page marked free may turn out to be full, and a page
+ * marked full may have room; HeapFile checks the page itself and corrects
+ * the bit.  Pages the map does not cover, e.g. pages appended by
+ * HeapFileEncoder, count as full.
+ * <p>
+ * The sidecar also records the number of pages of the heap file, which can
+ * be shorter than the file itself because HeapFile grows the file in
+ * preallocated extents, together with the length of the file it belongs to.
+ * <p>
+ * Everything is written through to a sidecar file next to the heap file
+ * whenever it changes:
+ * <pre>
+ *     int magic, int number of pages covered, int page count,
+ *     long file length, bitmap (bit i = page i)
+ * </pre>
+ * A sidecar that is missing or not recognized is ignored.  Writers that
+ * rewrite a heap file without HeapFile, like HeapFileEncoder, delete its
+ * sidecar; HeapFile also drops one whose page count the file contradicts.
+ */
+public class FreeSpaceMap {
+
+    // "FSM2"
+    private static final int MAGIC = 0x46534d32;
+
+    private static final int HEADER_SIZE = 20;
+
+    // sidecar file
+    private final File file;
+
+    // bit i is set if page i has free slots
+    private final BitSet free;
+
+    // number of pages the map covers
+    private int numPages;
+
+    // page count of the heap file and the file length it was recorded at,
+    // -1 if unknown
+    private int pageCount;
+    private long fileLength;
+
+    // channel to the sidecar, opened on the first change
+    private FileChannel channel;
+
+    /**
+     * Returns the sidecar file of the free-space map of a heap file.
+     */
+    public static File fileFor(File heapFile) {
+        return new File(heapFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Loads the free-space map stored in the specified sidecar file, or
+     * creates an empty one if there is none.
+     *
+     * @param file the sidecar file
+     * @param maxPages the number of pages of the heap file; bits for pages
+     *                 beyond it are dropped
+     */
+    public FreeSpaceMap(File file, int maxPages) {
+        this.file = file;
+        this.free = new BitSet();
+        this.numPages = 0;
+        this.pageCount = -1;
+        this.fileLength = -1;
+        if (!file.exists()) return;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(ch.size(), Integer.MAX_VALUE));
+            while (buf.hasRemaining() && ch.read(buf) >= 0);
+            buf.flip();
+            if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC) return;
+            int covered = Math.min(buf.getInt(), maxPages);
+            pageCount = buf.getInt();
+            fileLength = buf.getLong();
+            covered = Math.min(covered, buf.remaining() * 8);
+            for (int i = 0; i < covered; i ++ ) {
+                if ((buf.get(HEADER_SIZE + i / 8) >> (i % 8) & 1) == 1) free.set(i);
+            }
+            numPages = Math.max(covered, 0);
+        } catch (IOException e) {
+            // just a hint, start over
+            free.clear();
+            numPages = 0;
+            pageCount = -1;
+        }
+    }
+
+    /**
+     * Returns the page count recorded for the heap file, or -1 if none was
+     * recorded for a file of this length.
+     *
+     * @param fileLength the current length of the heap file
+     */
+    public synchronized int getPageCount(long fileLength) {
+        return fileLength == this.fileLength ? pageCount : -1;
+    }
+
+    /**
+     * Records the page count of the heap file and the length of the file.
+     */
+    public synchronized void setPageCount(int pageCount, long fileLength) {
+        if (pageCount == this.pageCount && fileLength == this.fileLength) return;
+        this.pageCount = pageCount;
+        this.fileLength = fileLength;
+        try {
+            writeHeader();
+        } catch (IOException e) {
+            // a stale count is noticed by the length check
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return true if the map knows whether the specified page has room
+     */
+    public synchronized boolean covers(int pageNo) {
+        return pageNo < numPages;
+    }
+
+    /**
+     * Returns the first page at or after start that is marked free, wrapping
+     * around at numPages, or -1 if there is none.
+     *
+     * @param start the page to start looking at
+     * @param numPages the number of pages of the heap file
+     */
+    public synchronized int findPage(int start, int numPages) {
+        if (numPages <= 0) return -1;
+        int pageNo = free.nextSetBit(start);
+        if (pageNo < 0 || pageNo >= numPages) pageNo = free.nextSetBit(0);
+        return pageNo >= 0 && pageNo < numPages ? pageNo : -1;
+    }
+
+    /**
+     * @return true if the specified page is marked free
+     */
+    public synchronized boolean isFree(int pageNo) {
+        return free.get(pageNo);
+    }
+
+    /**
+     * Marks the specified page as having free slots or not, writing the
+     * change through to the sidecar file.
+     */
+    public synchronized void setFree(int pageNo, boolean value) {
+        if (free.get(pageNo) == value && pageNo < numPages) return;
+        free.set(pageNo, value);
+        try {
+            // the header only changes when the map grows; opening the
+            // sidecar writes all of it
+            boolean opened = channel == null;
+            if (opened || pageNo >= numPages) {
+                numPages = Math.max(numPages, pageNo + 1);
+                writeHeader();
+                if (opened) return;
+            }
+            int index = pageNo / 8;
+            byte b = 0;
+            for (int i = 0; i < 8; i ++ ) {
+                if (free.get(index * 8 + i)) b |= 1 << i;
+            }
+            write(ByteBuffer.wrap(new byte[] { b }), HEADER_SIZE + index);
+        } catch (IOException e) {
+            // the in-memory map stays right, the sidecar is just a hint
+            e.printStackTrace();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        if (channel == null) {
+            // rewrite the whole sidecar once, then only changed bytes
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            channel.truncate(0);
+            byte[] bits = Arrays.copyOf(free.toByteArray(), (numPages + 7) / 8);
+            write(ByteBuffer.wrap(bits), HEADER_SIZE);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(numPages).putInt(pageCount).putLong(fileLength).flip();
+        write(header, 0);
+    }
+
+    private void write(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) channel.write(buf, pos + buf.position());
+    }
+
+    /**
+     * Forgets everything the map knows and deletes the sidecar file, for a
+     * heap file that was rewritten without it.
+     */
+    public synchronized void clear() {
+        free.clear();
+        numPages = 0;
+        pageCount = -1;
+        fileLength = -1;
+        try {
+            close();
+        } catch (IOException e) {
+            // the sidecar is deleted anyway
+        }
+        file.delete();
+    }
+
+    /**
+     * Closes the sidecar file.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
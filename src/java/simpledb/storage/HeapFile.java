@@ -10,7 +10,11 @@ import simpledb.transaction.TransactionId;
 import javax.xml.crypto.Data;
 import java.beans.PersistenceDelegate;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -33,6 +37,29 @@ public class HeapFile implements DbFile {
     // TableId
     private int tableId;
 
+    // channel kept open for all page reads and writes, opened lazily
+    private volatile FileChannel channel;
+
+    // pages with free slots, loaded on first use
+    private FreeSpaceMap freeSpace;
+
+    // number of pages, -1 until counted.  The file itself may be longer
+    // because it grows in preallocated extents.
+    private volatile int pageCount = -1;
+
+    // length of the file as of the last count; a different length means
+    // someone changed the file behind our back
+    private volatile long fileLength;
+
+    /** System property with the size in bytes by which files grow. */
+    public static final String EXTENT_SIZE_PROPERTY = "simpledb.storage.HeapFile.extentSize";
+
+    public static final int DEFAULT_EXTENT_SIZE = 1 << 20;
+
+    // direct buffers shared by all HeapFiles for page I/O
+    private static final int MAX_IO_BUFFERS = 64;
+    private static final ArrayBlockingQueue<ByteBuffer> ioBuffers = new ArrayBlockingQueue<>(MAX_IO_BUFFERS);
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -57,6 +84,11 @@ public class HeapFile implements DbFile {
         return file;
     }
 
+    // the backing file, for subclasses that don't change it
+    File backingFile() {
+        return file;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -84,40 +116,118 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
+        if (!file.exists()) throw new IllegalArgumentException("no such file: " + file);
+        int pageSize = BufferPool.getPageSize();
+        ByteBuffer buffer = acquireBuffer();
         try {
-            RandomAccessFile raf = new RandomAccessFile(file, "r");
-            try {
-                byte[] buffer = HeapPage.createEmptyPageData();
-                raf.seek(BufferPool.getPageSize() * pid.getPageNumber());
-                raf.read(buffer, 0, BufferPool.getPageSize());
-                Page page = new HeapPage((HeapPageId) pid, buffer);
-                if (page.getId().equals(pid)) return page;
-            } finally {
-                raf.close();
-            }
-        } catch (Exception e) {
+            FileChannel ch = channel();
+            long pos = (long) pageSize * pid.getPageNumber();
+            // positional reads leave the channel position alone, so
+            // concurrent readers don't serialize on it
+            while (buffer.hasRemaining()) {
+                if (ch.read(buffer, pos + buffer.position()) < 0) break;
+            }
+            // a page beyond the end of the file reads as an empty page
+            while (buffer.hasRemaining()) buffer.put((byte) 0);
+            buffer.flip();
+            // the page copies the bytes once into an array of its own, so
+            // the buffer can go back to the pool
+            return new HeapPage((HeapPageId) pid, buffer);
+        } catch (IOException e) {
             e.printStackTrace();
-            throw new IllegalArgumentException();
+            throw new IllegalArgumentException(e);
+        } finally {
+            releaseBuffer(buffer);
         }
-        throw new IllegalArgumentException();
     }
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
+        int pageSize = BufferPool.getPageSize();
+        ByteBuffer buffer = acquireBuffer();
         try {
-            RandomAccessFile raf = new RandomAccessFile(file, "rw");
-            try {
-                raf.seek(BufferPool.getPageSize() * page.getId().getPageNumber());
-                raf.write(page.getPageData(), 0, BufferPool.getPageSize());
-            } finally {
-                raf.close();
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new IllegalArgumentException();
+            buffer.put(page.getPageData(), 0, pageSize);
+            buffer.flip();
+            FileChannel ch = channel();
+            long pos = (long) pageSize * page.getId().getPageNumber();
+            while (buffer.hasRemaining()) {
+                ch.write(buffer, pos + buffer.position());
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+        int pageNo = page.getId().getPageNumber();
+        synchronized (this) {
+            // pages may also be written beyond the end of the file
+            if (pageCount >= 0 && pageNo >= pageCount) {
+                fileLength = Math.max(fileLength, (long) (pageNo + 1) * pageSize);
+                pageCount = pageNo + 1;
+                getFreeSpaceMap().setPageCount(pageCount, fileLength);
+            }
+        }
+        if (page instanceof HeapPage) {
+            getFreeSpaceMap().setFree(pageNo, ((HeapPage) page).getNumEmptySlots() > 0);
+        }
+    }
+
+    /**
+     * Returns the free-space map of this file, loading it from its sidecar
+     * file on first use.
+     */
+    public synchronized FreeSpaceMap getFreeSpaceMap() {
+        if (freeSpace == null) {
+            freeSpace = new FreeSpaceMap(FreeSpaceMap.fileFor(file), (int) (file.length() / BufferPool.getPageSize()));
         }
+        return freeSpace;
+    }
+
+    /**
+     * Closes the channel to the backing file.  It is reopened on the next
+     * page read or write.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            if (freeSpace != null) {
+                freeSpace.close();
+                freeSpace = null;
+            }
+        }
+    }
+
+    FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null || !ch.isOpen()) {
+            synchronized (this) {
+                ch = channel;
+                if (ch == null || !ch.isOpen()) {
+                    ch = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                    channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    private static ByteBuffer acquireBuffer() {
+        int pageSize = BufferPool.getPageSize();
+        ByteBuffer buffer = ioBuffers.poll();
+        // the page size only changes in tests; drop buffers of the old size
+        if (buffer == null || buffer.capacity() != pageSize) {
+            buffer = ByteBuffer.allocateDirect(pageSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer) {
+        ioBuffers.offer(buffer);
     }
 
     /**
@@ -125,8 +235,78 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        // System.out.println(file.length() / 4096);
-        return (int)file.length() / BufferPool.getPageSize();
+        int n = pageCount;
+        if (n < 0 || file.length() != fileLength) n = countPages();
+        return n;
+    }
+
+    private synchronized int countPages() {
+        long length = file.length();
+        int filePages = (int) (length / BufferPool.getPageSize());
+        if (pageCount < 0) {
+            // the file may end in a preallocated extent.  The sidecar may be
+            // left over from a file since rewritten to the same length, in
+            // which case the page after the count it recorded is in use.
+            FreeSpaceMap fsm = getFreeSpaceMap();
+            int recorded = fsm.getPageCount(length);
+            if (recorded >= 0 && recorded <= filePages && (recorded == filePages || isEmptyPage(recorded))) {
+                pageCount = recorded;
+            } else {
+                if (recorded >= 0) fsm.clear();
+                pageCount = filePages;
+            }
+        } else if (length != fileLength) {
+            pageCount = filePages;
+        }
+        fileLength = length;
+        return pageCount;
+    }
+
+    // whether a page of the file is all zeroes, as preallocated pages are
+    private boolean isEmptyPage(int pageNo) {
+        ByteBuffer buffer = acquireBuffer();
+        try {
+            FileChannel ch = channel();
+            long pos = (long) BufferPool.getPageSize() * pageNo;
+            while (buffer.hasRemaining()) {
+                if (ch.read(buffer, pos + buffer.position()) < 0) break;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                if (buffer.get() != 0) return false;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Adds a page to the end of this file and returns its id.  The file grows
+     * by whole extents of zeroes, so most new pages need no I/O at all; the
+     * page itself is only written when it is flushed.
+     */
+    private synchronized HeapPageId allocatePage() throws IOException {
+        int pageNo = numPages();
+        int pageSize = BufferPool.getPageSize();
+        long end = (long) (pageNo + 1) * pageSize;
+        if (end > fileLength) {
+            long extent = Math.max(Integer.getInteger(EXTENT_SIZE_PROPERTY, DEFAULT_EXTENT_SIZE), pageSize);
+            long length = (end + extent - 1) / extent * extent;
+            ByteBuffer zeroes = ByteBuffer.allocate((int) Math.min(length - fileLength, 64 * 1024));
+            FileChannel ch = channel();
+            for (long pos = fileLength; pos < length; ) {
+                zeroes.clear();
+                if (length - pos < zeroes.capacity()) zeroes.limit((int) (length - pos));
+                pos += ch.write(zeroes, pos);
+            }
+            fileLength = length;
+        }
+        pageCount = pageNo + 1;
+        getFreeSpaceMap().setPageCount(pageCount, fileLength);
+        return new HeapPageId(tableId, pageNo);
     }
 
     // see DbFile.java for javadocs
@@ -134,20 +314,79 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         List<Page> list = new ArrayList<>();
-        if (numPages() == 0) {
-            writePage(new HeapPage(new HeapPageId(tableId, 0), HeapPage.createEmptyPageData()));
-        }
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(tableId, numPages() - 1), Permissions.READ_WRITE);
-        if (page.getNumEmptySlots() == 0) {
-            writePage(new HeapPage(new HeapPageId(tableId, numPages()), HeapPage.createEmptyPageData()));
-            page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(tableId, numPages() - 1), Permissions.READ_WRITE);
-        }
+        HeapPage page = pageForInsert(tid);
         page.insertTuple(t);
+        if (page.getNumEmptySlots() == 0) getFreeSpaceMap().setFree(page.getId().getPageNumber(), false);
         list.add(page);
         return list;
         // not necessary for lab1
     }
 
+    // see DbFile.java for javadocs
+    public List<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        List<Page> list = new ArrayList<>();
+        while (tuples.hasNext()) {
+            // each page is locked once and filled before moving on
+            HeapPage page = pageForInsert(tid);
+            while (tuples.hasNext() && page.getNumEmptySlots() > 0) {
+                page.insertTuple(tuples.next());
+            }
+            if (page.getNumEmptySlots() == 0) getFreeSpaceMap().setFree(page.getId().getPageNumber(), false);
+            list.add(page);
+        }
+        return list;
+    }
+
+    /**
+     * Returns a page with a free slot, locked for writing by tid.  Pages the
+     * free-space map knows to have room are tried first; if there are none,
+     * a new page is allocated and placed in the buffer pool.
+     */
+    private HeapPage pageForInsert(TransactionId tid)
+            throws DbException, IOException, TransactionAbortedException {
+        FreeSpaceMap fsm = getFreeSpaceMap();
+        int numPages = numPages();
+        // concurrent inserters start looking at different pages
+        int start = numPages == 0 ? 0 : Math.floorMod((int) ((tid.getId() * 0x9E3779B97F4A7C15L) >>> 32), numPages);
+        HeapPage page = null;
+        for (int pageNo = fsm.findPage(start, numPages); page == null && pageNo >= 0; pageNo = fsm.findPage(start, numPages)) {
+            page = pageWithRoom(tid, pageNo);
+        }
+        // the last page is not in the map if the file was written by HeapFileEncoder
+        if (page == null && numPages > 0 && !fsm.covers(numPages - 1)) {
+            page = pageWithRoom(tid, numPages - 1);
+        }
+        if (page == null) {
+            // the new page goes straight into the buffer pool
+            HeapPageId pid = allocatePage();
+            page = (HeapPage) Database.getBufferPool().newPage(tid, new HeapPage(pid, HeapPage.createEmptyPageData()));
+            fsm.setFree(pid.getPageNumber(), true);
+        }
+        return page;
+    }
+
+    /**
+     * Returns the specified page locked for writing if it has a free slot.
+     * Otherwise marks it full in the free-space map, gives back the lock if
+     * it was taken just for this check, and returns null.
+     */
+    private HeapPage pageWithRoom(TransactionId tid, int pageNo)
+            throws DbException, TransactionAbortedException {
+        BufferPool pool = Database.getBufferPool();
+        HeapPageId pid = new HeapPageId(tableId, pageNo);
+        // a lock on the table does not count, the check takes one on the page
+        boolean locked = pool.holdsPageLock(tid, pid);
+        HeapPage page = (HeapPage) pool.getPageToInspect(tid, pid);
+        if (page.getNumEmptySlots() > 0) {
+            pool.beforeWrite(tid, page);
+            return page;
+        }
+        getFreeSpaceMap().setFree(pageNo, false);
+        if (!locked) pool.unsafeReleasePage(tid, pid);
+        return null;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -155,6 +394,7 @@ public class HeapFile implements DbFile {
         ArrayList<Page> list = new ArrayList<>();
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
         page.deleteTuple(t);
+        getFreeSpaceMap().setFree(page.getId().getPageNumber(), true);
         list.add(page);
         return list;
         // not necessary for lab1
@@ -171,10 +411,36 @@ public class HeapFile implements DbFile {
             // pageIterator
             private Iterator<Tuple> pageIterator;
 
+            // last page fetched, and how many pages in a row were consecutive
+            private int lastPageNum;
+            private int sequentialRun;
+
+            // highest page number handed to read-ahead
+            private int readAheadUpTo;
+
             @Override
             public void open() throws DbException, TransactionAbortedException {
                 pageNum = 0;
-                pageIterator = ((HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(tableId, pageNum), Permissions.READ_ONLY)).iterator();
+                lastPageNum = -1;
+                sequentialRun = 0;
+                readAheadUpTo = 0;
+                pageIterator = fetch(pageNum);
+            }
+
+            private Iterator<Tuple> fetch(int pageNum) throws DbException, TransactionAbortedException {
+                sequentialRun = pageNum == lastPageNum + 1 ? sequentialRun + 1 : 0;
+                lastPageNum = pageNum;
+                // once two pages in a row were read, keep the next window of
+                // pages on their way into the buffer pool
+                if (sequentialRun >= 2) {
+                    BufferPool pool = Database.getBufferPool();
+                    int last = Math.min(pageNum + pool.getReadAheadWindow(), numPages() - 1);
+                    for (int p = Math.max(readAheadUpTo, pageNum) + 1; p <= last; p ++ ) {
+                        pool.prefetch(HeapFile.this, new HeapPageId(tableId, p));
+                        readAheadUpTo = p;
+                    }
+                }
+                return ((HeapPage) Database.getBufferPool().getSnapshotPage(tid, new HeapPageId(tableId, pageNum))).iterator();
             }
 
             private boolean advance() throws DbException, TransactionAbortedException, NoSuchElementException {
@@ -183,7 +449,7 @@ public class HeapFile implements DbFile {
                     if (pageNum >= numPages()) return false;
                     //System.out.println("numPages: " + numPages());
                     //System.out.println("pageNum: " + pageNum);
-                    pageIterator = ((HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(tableId, pageNum), Permissions.READ_ONLY)).iterator();
+                    pageIterator = fetch(pageNum);
                     if (pageIterator.hasNext()) return true;
                 }
             }
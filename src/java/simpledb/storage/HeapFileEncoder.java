@@ -4,8 +4,19 @@ import simpledb.common.Type;
 import simpledb.common.Utility;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -92,136 +103,425 @@ public class HeapFileEncoder {
   public static void convert(File inFile, File outFile, int npagebytes,
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
+      convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator, 1);
+  }
+
+  /** Convert the specified input text file into a binary page file, parsing
+   * it on several threads. <br>
+   *
+   * The input is split into chunks of about {@link #CHUNK_SIZE} bytes at line
+   * boundaries, so it must use an encoding in which a newline byte always is
+   * one, e.g. ASCII, ISO-8859-1 or UTF-8.  Strings are decoded with the
+   * default charset, like the serial encoder's FileReader did: they are cut
+   * at {@link Type#STRING_LEN} characters and each character is stored as
+   * its low byte.  Worker threads parse the chunks into encoded records; the
+   * calling thread packs the records into pages, in input order, and writes
+   * them through a FileChannel.  At most two chunks per thread are in memory
+   * at any time.  The output is the same whatever the number of threads.
+   * <p>
+   * An integer field that does not parse is reported as a BAD LINE and
+   * stored as 0, so the row keeps its other fields in place; the serial
+   * encoder used to leave the field out, which shifted the rest of the page.
+   * A {@link RecordListener} is told about every such field.
+   *
+   * @param inFile The input file to read data from
+   * @param outFile The output file to write data to
+   * @param npagebytes The number of bytes per page in the output file
+   * @param numFields the number of fields in each input line/output tuple
+   * @param typeAr the types of the fields
+   * @param fieldSeparator the character between two fields of a line
+   * @param threads the number of parsing threads; 1 parses on the calling thread
+   * @return the number of rows written
+   * @throws IOException if the input/output file can't be opened or a
+   *   malformed input line is encountered
+   */
+  public static long convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator, int threads)
+      throws IOException {
+      return convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator, threads, CHUNK_SIZE);
+  }
+
+  /** Bytes of input parsed as one unit of work by the parallel encoder. */
+  public static final int CHUNK_SIZE = 4 << 20;
+
+  /**
+   * Receives every record the encoder writes, in input order and on the
+   * thread that called convert, e.g. to collect statistics while loading.
+   */
+  public interface RecordListener {
+      /**
+       * @param records holds the encoded record, in the HeapPage slot format
+       * @param offset the position of the record in records
+       */
+      void record(ByteBuffer records, int offset);
 
+      /**
+       * Called for each integer field that did not parse and was stored as
+       * 0, before the record of its row.
+       *
+       * @param row the number of the row among the rows written, from 0
+       * @param field the number of the field in the row
+       * @param text the trimmed text of the field
+       */
+      default void badField(long row, int field, String text) {
+      }
+  }
+
+  /** As {@link #convert(File, File, int, int, Type[], char, int)}, with
+   * chunks of chunkSize bytes. */
+  public static long convert(File inFile, File outFile, int npagebytes, int numFields,
+                      Type[] typeAr, char fieldSeparator, int threads, int chunkSize)
+      throws IOException {
+      return convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator, threads, chunkSize, null);
+  }
+
+  /** As {@link #convert(File, File, int, int, Type[], char, int, int)},
+   * handing each record to listener (if not null) as it is written. */
+  public static long convert(File inFile, File outFile, int npagebytes, int numFields,
+                      Type[] typeAr, char fieldSeparator, int threads, int chunkSize,
+                      RecordListener listener)
+      throws IOException {
+      if (threads < 1) throw new IllegalArgumentException("threads must be positive");
       int nrecbytes = 0;
       for (int i = 0; i < numFields ; i++) {
           nrecbytes += typeAr[i].getLen();
       }
-      int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
-      
-    //  per record, we need one bit; there are nrecords per page, so we need
-    // nrecords bits, i.e., ((nrecords/32)+1) integers.
-    int nheaderbytes = (nrecords / 8);
-    if (nheaderbytes * 8 < nrecords)
-        nheaderbytes++;  //ceiling
-    int nheaderbits = nheaderbytes * 8;
-
-    BufferedReader br = new BufferedReader(new FileReader(inFile));
-    FileOutputStream os = new FileOutputStream(outFile);
-
-    // our numbers probably won't be much larger than 1024 digits
-    char[] buf = new char[1024];
-
-    int curpos = 0;
-    int recordcount = 0;
-    int npages = 0;
-    int fieldNo = 0;
-
-    ByteArrayOutputStream headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-    DataOutputStream headerStream = new DataOutputStream(headerBAOS);
-    ByteArrayOutputStream pageBAOS = new ByteArrayOutputStream(npagebytes);
-    DataOutputStream pageStream = new DataOutputStream(pageBAOS);
-
-    boolean done = false;
-    boolean first = true;
-    while (!done) {
-        int c = br.read();
-        
-        // Ignore Windows/Notepad special line endings
-        if (c == '\r')
-            continue;
-
-        if (c == '\n') {
-            if (first)
-                continue;
-            recordcount++;
-            first = true;
-        } else
-            first = false;
-        if (c == fieldSeparator || c == '\n' || c == '\r') {
-            String s = new String(buf, 0, curpos);
-            if (typeAr[fieldNo] == Type.INT_TYPE) {
-                try {
-                    pageStream.writeInt(Integer.parseInt(s.trim()));
-                } catch (NumberFormatException e) {
-                    System.out.println ("BAD LINE : " + s);
-                }
-            }
-            else   if (typeAr[fieldNo] == Type.STRING_TYPE) {
-                s = s.trim();
-                int overflow = Type.STRING_LEN - s.length();
-                if (overflow < 0) {
-                    s  = s.substring(0,Type.STRING_LEN);
-                }
-                pageStream.writeInt(s.length());
-                pageStream.writeBytes(s);
-                while (overflow-- > 0)
-                    pageStream.write((byte)0);
-            }
-            curpos = 0;
-            if (c == '\n')
-                fieldNo = 0;
-            else
-                fieldNo++;
-            
-        } else if (c == -1) {
-            done = true;
-            
-        } else {
-            buf[curpos++] = (char)c;
-            continue;
-        }
-        
-        // if we wrote a full page of records, or if we're done altogether,
-        // write out the header of the page.
-        //
-        // in the header, write a 1 for bits that correspond to records we've
-        // written and 0 for empty slots.
-        //
-        // when we're done, also flush the page to disk, but only if it has
-        // records on it.  however, if this file is empty, do flush an empty
-        // page to disk.
-        if (recordcount >= nrecords
-            || done && recordcount > 0
-            || done && npages == 0) {
-            int i = 0;
-            byte headerbyte = 0;
-            
-            for (i=0; i<nheaderbits; i++) {
-                if (i < recordcount)
-                    headerbyte |= (1 << (i % 8));
-                
-                if (((i+1) % 8) == 0) {
-                    headerStream.writeByte(headerbyte);
-                    headerbyte = 0;
-                }
-            }
-            
-            if (i % 8 > 0)
-                headerStream.writeByte(headerbyte);
-            
-            // pad the rest of the page with zeroes
-            
-            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes)); i++)
-                pageStream.writeByte(0);
-            
-            // write header and body to file
-            headerStream.flush();
-            headerBAOS.writeTo(os);
-            pageStream.flush();
-            pageBAOS.writeTo(os);
-            
-            // reset header and body for next page
-            headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-            headerStream = new DataOutputStream(headerBAOS);
-            pageBAOS = new ByteArrayOutputStream(npagebytes);
-            pageStream = new DataOutputStream(pageBAOS);
-            
-            recordcount = 0;
-            npages++;
-        }
-    }
-    br.close();
-    os.close();
+      // the free-space map and page count of the old contents no longer hold
+      Files.deleteIfExists(FreeSpaceMap.fileFor(outFile).toPath());
+      PageWriter writer;
+      try (FileChannel in = FileChannel.open(inFile.toPath(), StandardOpenOption.READ);
+           FileChannel out = FileChannel.open(outFile.toPath(), StandardOpenOption.WRITE,
+                   StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+          long length = in.size();
+          int nchunks = (int) Math.max(1, (length + chunkSize - 1) / chunkSize);
+          writer = new PageWriter(out, npagebytes, nrecbytes, listener);
+          if (threads == 1) {
+              for (int i = 0; i < nchunks; i++) {
+                  writer.write(new ChunkParser(in, (long) i * chunkSize, Math.min(length, (long) (i + 1) * chunkSize),
+                          typeAr, numFields, nrecbytes, fieldSeparator).call());
+              }
+          } else {
+              ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+                  Thread t = new Thread(r, "heapfile-encoder");
+                  t.setDaemon(true);
+                  return t;
+              });
+              try {
+                  // keep a bounded window of chunks in flight and consume them in order
+                  ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<>();
+                  int next = 0;
+                  while (next < nchunks || !inFlight.isEmpty()) {
+                      while (next < nchunks && inFlight.size() < 2 * threads) {
+                          inFlight.add(pool.submit(new ChunkParser(in, (long) next * chunkSize,
+                                  Math.min(length, (long) (next + 1) * chunkSize),
+                                  typeAr, numFields, nrecbytes, fieldSeparator)));
+                          next++;
+                      }
+                      writer.write(inFlight.poll().get());
+                  }
+              } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  throw new InterruptedIOException("interrupted while converting " + inFile);
+              } catch (ExecutionException e) {
+                  if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                  throw new IOException(e.getCause());
+              } finally {
+                  pool.shutdownNow();
+              }
+          }
+          writer.finish();
+      }
+      return writer.rows;
+  }
+
+  /**
+   * Parses the lines that start in [start, end) of the input into records of
+   * the page format, one after the other.  A line belongs to the chunk its
+   * first byte is in, so the parser skips a partial first line and reads past
+   * end to complete its last one.  The records go into blocks of about
+   * BLOCK_SIZE bytes, allocated as they fill, so that a chunk takes about as
+   * much memory as its records.
+   */
+  private static class ChunkParser implements Callable<Chunk> {
+
+      private static final int READ_SIZE = 64 << 10;
+
+      private static final int BLOCK_SIZE = 64 << 10;
+
+      private final FileChannel in;
+      private final long start;
+      private final long end;
+      private final Type[] typeAr;
+      private final int numFields;
+      private final int nrecbytes;
+      private final byte fieldSeparator;
+
+      // full blocks of records, flipped
+      private final List<ByteBuffer> blocks = new ArrayList<>();
+
+      // integer fields that did not parse
+      private final List<BadField> bad = new ArrayList<>();
+
+      // records started so far
+      private int nrecords;
+
+      // the block being filled, position at the end of the last record
+      private ByteBuffer records;
+
+      // the field being read
+      private byte[] field = new byte[1024];
+      private int fieldLen;
+      private int fieldNo;
+      private boolean emptyLine = true;
+
+      ChunkParser(FileChannel in, long start, long end, Type[] typeAr, int numFields,
+                  int nrecbytes, char fieldSeparator) {
+          this.in = in;
+          this.start = start;
+          this.end = end;
+          this.typeAr = typeAr;
+          this.numFields = numFields;
+          this.nrecbytes = nrecbytes;
+          this.fieldSeparator = (byte) fieldSeparator;
+      }
+
+      public Chunk call() throws IOException {
+          ByteBuffer buf = ByteBuffer.allocate(READ_SIZE);
+          long pos = start;
+          boolean skipping = false;
+          if (start > 0) {
+              // the line running into this chunk belongs to the previous one
+              pos = start - 1;
+              skipping = true;
+          }
+          boolean lineStart = true;
+          int n;
+          while ((n = in.read(buf, pos)) > 0) {
+              byte[] b = buf.array();
+              for (int i = 0; i < n; i++, pos++) {
+                  byte c = b[i];
+                  if (skipping) {
+                      if (c == '\n') skipping = false;
+                      continue;
+                  }
+                  // a line starting at or after end belongs to the next chunk
+                  if (lineStart && pos >= end) return finish();
+                  accept(c);
+                  lineStart = c == '\n';
+              }
+              buf.clear();
+          }
+          // the input does not end with a newline
+          if (!emptyLine) accept((byte) '\n');
+          return finish();
+      }
+
+      private Chunk finish() {
+          if (records != null) {
+              records.flip();
+              blocks.add(records);
+              records = null;
+          }
+          return new Chunk(blocks, bad);
+      }
+
+      private void accept(byte c) throws IOException {
+          // ignore Windows/Notepad special line endings
+          if (c == '\r') return;
+          if (c == '\n') {
+              if (emptyLine) return;
+              endField();
+              // missing trailing fields are left zero
+              while (fieldNo < numFields) {
+                  records.position(records.position() + typeAr[fieldNo++].getLen());
+              }
+              fieldNo = 0;
+              emptyLine = true;
+          } else if (c == fieldSeparator) {
+              emptyLine = false;
+              endField();
+          } else {
+              emptyLine = false;
+              if (fieldLen == field.length) field = Arrays.copyOf(field, 2 * fieldLen);
+              field[fieldLen++] = c;
+          }
+      }
+
+      private void endField() throws IOException {
+          if (fieldNo >= numFields) {
+              throw new IOException("line has more than " + numFields + " fields");
+          }
+          if (fieldNo == 0) {
+              startRecord();
+              nrecords++;
+          }
+          int from = 0, to = fieldLen;
+          // as String.trim(); bytes of non-ASCII characters are negative
+          while (from < to && field[from] >= 0 && field[from] <= ' ') from++;
+          while (to > from && field[to - 1] >= 0 && field[to - 1] <= ' ') to--;
+          Type type = typeAr[fieldNo];
+          if (type == Type.INT_TYPE) {
+              records.putInt(parseInt(from, to));
+          } else if (type == Type.STRING_TYPE) {
+              putString(from, to);
+          }
+          fieldLen = 0;
+          fieldNo++;
+      }
+
+      private int parseInt(int from, int to) {
+          boolean negative = from < to && field[from] == '-';
+          int i = negative || (from < to && field[from] == '+') ? from + 1 : from;
+          long value = 0;
+          boolean ok = i < to && to - i <= 10;
+          for (; ok && i < to; i++) {
+              int d = field[i] - '0';
+              if (d < 0 || d > 9) ok = false;
+              value = value * 10 + d;
+          }
+          if (ok && negative) value = -value;
+          if (!ok || value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+              bad.add(new BadField(nrecords - 1, fieldNo, new String(field, from, to - from)));
+              return 0;
+          }
+          return (int) value;
+      }
+
+      private void putString(int from, int to) {
+          boolean ascii = true;
+          for (int i = from; i < to && ascii; i++) ascii = field[i] >= 0;
+          if (ascii) {
+              // one character per byte
+              int len = Math.min(to - from, Type.STRING_LEN);
+              records.putInt(len);
+              records.put(field, from, len);
+              records.position(records.position() + Type.STRING_LEN - len);
+              return;
+          }
+          String s = new String(field, from, to - from);
+          if (s.length() > Type.STRING_LEN) s = s.substring(0, Type.STRING_LEN);
+          records.putInt(s.length());
+          for (int i = 0; i < s.length(); i++) records.put((byte) s.charAt(i));
+          records.position(records.position() + Type.STRING_LEN - s.length());
+      }
+
+      // makes room for a record in the current block
+      private void startRecord() {
+          if (records != null && records.remaining() >= nrecbytes) return;
+          if (records != null) {
+              records.flip();
+              blocks.add(records);
+          }
+          records = ByteBuffer.allocate(Math.max(1, BLOCK_SIZE / nrecbytes) * nrecbytes);
+      }
+  }
+
+  /**
+   * An integer field that did not parse, by the number of its record in its
+   * chunk.
+   */
+  private static class BadField {
+      final int record;
+      final int field;
+      final String text;
+
+      BadField(int record, int field, String text) {
+          this.record = record;
+          this.field = field;
+          this.text = text;
+      }
+  }
+
+  /**
+   * The records parsed from a chunk of the input.
+   */
+  private static class Chunk {
+      final List<ByteBuffer> blocks;
+      final List<BadField> bad;
+
+      Chunk(List<ByteBuffer> blocks, List<BadField> bad) {
+          this.blocks = blocks;
+          this.bad = bad;
+      }
+  }
+
+  /**
+   * Packs encoded records into pages and appends the pages to the output.
+   * Records fill the slots of a page in order and the header marks them used;
+   * the rest of the page is zero.
+   */
+  private static class PageWriter {
+
+      private final FileChannel out;
+      private final int npagebytes;
+      private final int nrecbytes;
+      private final int nrecords;
+      private final int nheaderbytes;
+      private final ByteBuffer page;
+      private final RecordListener listener;
+
+      // records on the current page
+      private int recordcount;
+      private int npages;
+      long rows;
+
+      PageWriter(FileChannel out, int npagebytes, int nrecbytes, RecordListener listener) {
+          this.out = out;
+          this.listener = listener;
+          this.npagebytes = npagebytes;
+          this.nrecbytes = nrecbytes;
+          this.nrecords = (npagebytes * 8) / (nrecbytes * 8 + 1);  //floor comes for free
+          // per record, we need one bit; there are nrecords per page, so we need
+          // nrecords bits, i.e., ceil(nrecords / 8) bytes.
+          this.nheaderbytes = (nrecords + 7) / 8;
+          this.page = ByteBuffer.allocateDirect(npagebytes);
+      }
+
+      void write(Chunk chunk) throws IOException {
+          long first = rows;
+          int next = 0;
+          for (ByteBuffer records : chunk.blocks) {
+              while (records.remaining() >= nrecbytes) {
+                  // bad fields are reported on this thread, in input order
+                  for (; next < chunk.bad.size() && first + chunk.bad.get(next).record == rows; next++) {
+                      BadField b = chunk.bad.get(next);
+                      System.out.println("BAD LINE : " + b.text);
+                      if (listener != null) listener.badField(rows, b.field, b.text);
+                  }
+                  write(records);
+              }
+          }
+      }
+
+      // writes the next record of records
+      private void write(ByteBuffer records) throws IOException {
+          if (listener != null) listener.record(records, records.position());
+          int limit = records.limit();
+          records.limit(records.position() + nrecbytes);
+          page.position(nheaderbytes + recordcount * nrecbytes);
+          page.put(records);
+          records.limit(limit);
+          page.put(recordcount / 8, (byte) (page.get(recordcount / 8) | (1 << (recordcount % 8))));
+          recordcount++;
+          rows++;
+          if (recordcount == nrecords) flushPage();
+      }
+
+      void finish() throws IOException {
+          // an empty file still gets one (empty) page
+          if (recordcount > 0 || npages == 0) flushPage();
+      }
+
+      private void flushPage() throws IOException {
+          page.clear();
+          long pos = (long) npages * npagebytes;
+          while (page.hasRemaining()) {
+              pos += out.write(page, pos);
+          }
+          page.clear();
+          while (page.hasRemaining()) page.put((byte) 0);
+          recordcount = 0;
+          npages++;
+      }
   }
 }
@@ -6,6 +6,7 @@ import simpledb.common.Debug;
 import simpledb.common.Catalog;
 import simpledb.transaction.TransactionId;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.io.*;
 
@@ -21,12 +22,25 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte[] header;
-    final Tuple[] tuples;
     final int numSlots;
 
+    // header bytes, bytes per tuple and offset of each field in a tuple
+    final int headerSize;
+    final int tupleSize;
+    final int[] fieldOffsets;
+
+    // the raw page: header bits followed by the tuple slots.  Tuples are
+    // decoded from it on access.  It is a read-only region of a mapped file
+    // until the page is first modified, see writableData().
+    ByteBuffer data;
+
+    // tuples handed out so far, null for slots that were not accessed yet
+    final Tuple[] tuples;
+
+    // the page before its first modification since the last call to
+    // setBeforeImage(), null while the page is unmodified
     byte[] oldData;
-    private final Byte oldDataLock= (byte) 0;
+    private final Object oldDataLock = new Object();
 
     boolean dirty;
     TransactionId tid;
@@ -43,32 +57,51 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page keeps a copy of data and decodes tuples from it lazily.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from the page bytes starting at the current position
+     * of the specified buffer, for example a region of a memory-mapped file.
+     * Neither the contents nor the position of the buffer change.  A
+     * read-only buffer is used in place until the page is first modified,
+     * any other buffer is copied.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.tupleSize = td.getSize();
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        this.headerSize = getHeaderSize();
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
+
+        int pageSize = BufferPool.getPageSize();
+        if (data.isReadOnly() && data.remaining() >= pageSize) {
+            ByteBuffer region = data.slice();
+            region.limit(pageSize);
+            this.data = region;
+        } else {
+            // pages shorter than a full page are padded with zeroes
+            byte[] bytes = new byte[pageSize];
+            data.duplicate().get(bytes, 0, Math.min(pageSize, data.remaining()));
+            this.data = ByteBuffer.wrap(bytes);
         }
-        dis.close();
+        tuples = new Tuple[numSlots];
 
-        setBeforeImage();
+        // the before image is captured on the first modification, see
+        // writableData(); read-only pages never copy it
+        oldData = null;
 
         // set dirty
         dirty = false;
@@ -80,7 +113,7 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
-        return Math.floorDiv((BufferPool.getPageSize()*8), (td.getSize() * 8 + 1));
+        return Math.floorDiv((BufferPool.getPageSize()*8), (tupleSize * 8 + 1));
     }
 
     /**
@@ -89,7 +122,7 @@ public class HeapPage implements Page {
      */
     private int getHeaderSize() {
         // some code goes here
-        return (int) Math.ceil(getNumTuples() / 8.0);
+        return (int) Math.ceil(numSlots / 8.0);
     }
     
     /** Return a view of this page before it was modified
@@ -99,7 +132,9 @@ public class HeapPage implements Page {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
-                oldDataRef = oldData;
+                // not modified since the before image was set; copied under
+                // the lock, as the first modification takes it first
+                oldDataRef = oldData != null ? oldData : getPageData();
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -113,7 +148,8 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        // the current contents are the before image until the next change
+        oldData = null;
         }
     }
 
@@ -126,109 +162,135 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset of the given slot in the page data
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * tupleSize;
+    }
+
+    /**
+     * Returns the page data for a modification.  The first modification
+     * since setBeforeImage() saves a copy as the before image, and a page
+     * that still is a read-only mapped region is copied to the heap.
+     */
+    private ByteBuffer writableData() {
+        synchronized(oldDataLock)
+        {
+            if (oldData == null) oldData = getPageData();
+        }
+        if (data.isReadOnly()) {
+            byte[] bytes = new byte[data.capacity()];
+            data.duplicate().get(bytes);
+            data = ByteBuffer.wrap(bytes);
+        }
+        return data;
+    }
+
+    /**
+     * Returns the tuple in the given slot, which must be in use.  The first
+     * access creates a view of the slot that decodes fields on demand.  A
+     * page that still is a mapped region of its file decodes the tuple right
+     * away instead: the region changes when the file is written, also after
+     * the page left the buffer pool, and the tuple must not keep it.
+     */
+    private Tuple tupleAt(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            if (data.isReadOnly()) {
+                t = new Tuple(td);
+                for (int i = 0; i < fieldOffsets.length; i++) t.setField(i, parseField(slotId, i));
+                t.setRecordId(new RecordId(pid, slotId));
+            } else {
+                t = new SlotTuple(slotId);
             }
-            return null;
+            tuples[slotId] = t;
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
+    /**
+     * Decodes field i of the tuple in the given slot from the page data.
+     */
+    private Field parseField(int slotId, int i) {
         try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
+            return td.getFieldType(i).parse(data, slotOffset(slotId) + fieldOffsets[i]);
+        } catch (java.text.ParseException | IndexOutOfBoundsException e) {
             e.printStackTrace();
             throw new NoSuchElementException("parsing error!");
         }
-
-        return t;
     }
 
     /**
-     * Generates a byte array representing the contents of this page.
-     * Used to serialize this page to disk.
-     * <p>
-     * The invariant here is that it should be possible to pass the byte
-     * array generated by getPageData to the HeapPage constructor and
-     * have it produce an identical HeapPage object.
-     *
-     * @see #HeapPage
-     * @return A byte array correspond to the bytes of this page.
+     * A tuple that still lives in the page data.  Fields and the RecordId
+     * are only created when asked for, so scans that look at few fields of
+     * a tuple, or skip it altogether, don't pay for decoding all of them.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+    private class SlotTuple extends Tuple {
 
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
+        private static final long serialVersionUID = 1L;
 
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+        // slot of this tuple
+        private final int slotId;
 
-                }
-                continue;
+        SlotTuple(int slotId) {
+            super(td);
+            this.slotId = slotId;
+        }
+
+        @Override
+        public RecordId getRecordId() {
+            RecordId rid = super.getRecordId();
+            if (rid == null) {
+                rid = new RecordId(pid, slotId);
+                setRecordId(rid);
             }
+            return rid;
+        }
 
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        @Override
+        public Field getField(int i) {
+            Field f = fields[i];
+            if (f == null && i < fieldOffsets.length) {
+                f = parseField(slotId, i);
+                fields[i] = f;
             }
+            return f;
         }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
+        /**
+         * Decodes all fields, called before the bytes of the slot go away.
+         */
+        void materialize() {
+            getRecordId();
+            for (int i = 0; i < fields.length; i++) getField(i);
         }
 
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+        // serialized as a plain tuple, the page is not serializable
+        private Object writeReplace() {
+            Tuple copy = new Tuple(getTupleDesc());
+            for (int i = 0; i < fields.length; i++) copy.setField(i, getField(i));
+            copy.setRecordId(getRecordId());
+            return copy;
         }
+    }
 
-        return baos.toByteArray();
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     * <p>
+     * The invariant here is that it should be possible to pass the byte
+     * array generated by getPageData to the HeapPage constructor and
+     * have it produce an identical HeapPage object.
+     *
+     * @see #HeapPage
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        byte[] bytes = new byte[BufferPool.getPageSize()];
+        ByteBuffer src = data.duplicate();
+        src.clear();
+        src.get(bytes, 0, Math.min(bytes.length, src.remaining()));
+        return bytes;
     }
 
     /**
@@ -255,16 +317,20 @@ public class HeapPage implements Page {
     public void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-        if (isSlotUsed(t.getRecordId().getTupleNumber())) {
-            // System.out.println(t);
-            // System.out.println(tuples[t.getRecordId().getTupleNumber()]);
-            // if (tuples[t.getRecordId().getTupleNumber()].equals(t) == false) throw new DbException("not in this page");
-            if (!tuples[t.getRecordId().getTupleNumber()].getRecordId().equals(t.getRecordId())) throw new DbException("not in this page");
-            markSlotUsed(t.getRecordId().getTupleNumber(), false);
-            tuples[t.getRecordId().getTupleNumber()] = null;
-            return;
-        }
-        throw new DbException("tuple slot is empty");
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId())) throw new DbException("not in this page");
+        int slotId = rid.getTupleNumber();
+        if (slotId < 0 || slotId >= numSlots || !isSlotUsed(slotId)) throw new DbException("tuple slot is empty");
+
+        // tuples handed out keep their values after the slot is cleared
+        Tuple old = tuples[slotId];
+        if (old instanceof SlotTuple) ((SlotTuple) old).materialize();
+        tuples[slotId] = null;
+
+        ByteBuffer buf = writableData();
+        markSlotUsed(slotId, false);
+        int offset = slotOffset(slotId);
+        for (int i = 0; i < tupleSize; i++) buf.put(offset + i, (byte) 0);
     }
 
     /**
@@ -277,17 +343,47 @@ public class HeapPage implements Page {
     public void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-
-        if (getNumEmptySlots() == 0) throw new DbException("page is full");
+        if (!td.equals(t.getTupleDesc())) throw new DbException("tupledesc is mismatch");
         for (int i = 0; i < numSlots; i ++ ) {
             if (isSlotUsed(i) == false) {
+                ByteBuffer buf = writableData();
+                ByteBuffer slot = buf.duplicate();
+                slot.position(slotOffset(i));
+                try {
+                    DataOutputStream dos = new DataOutputStream(new ByteBufferOutputStream(slot));
+                    for (int j = 0; j < fieldOffsets.length; j ++ ) t.getField(j).serialize(dos);
+                } catch (IOException e) {
+                    throw new DbException("can't serialize tuple: " + e.getMessage());
+                }
                 t.setRecordId(new RecordId(pid, i));
                 tuples[i] = t;
                 markSlotUsed(i, true);
                 return;
             }
         }
+        throw new DbException("page is full");
+    }
+
+    /**
+     * Writes into a ByteBuffer at its position.
+     */
+    private static class ByteBufferOutputStream extends OutputStream {
+
+        private final ByteBuffer buf;
+
+        ByteBufferOutputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
 
+        @Override
+        public void write(int b) {
+            buf.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buf.put(b, off, len);
+        }
     }
 
     /**
@@ -319,14 +415,14 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int res = 0;
-        for (int i = 0; i < numSlots; i ++ ) {
-            if ((header[i / 8] >> (i % 8) & 1) == 0) {
-                res ++;
-            }
+        int used = 0;
+        for (int i = 0; i < headerSize; i ++ ) {
+            int bits = data.get(i) & 0xff;
+            // ignore the unused bits of the last header byte
+            if (i == headerSize - 1 && numSlots % 8 != 0) bits &= (1 << (numSlots % 8)) - 1;
+            used += Integer.bitCount(bits);
         }
-        // System.out.println(res);
-        return res;
+        return numSlots - used;
     }
 
     /**
@@ -334,7 +430,7 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
-        return (header[i / 8] >> (i % 8) & 1) == 1;
+        return (data.get(i / 8) >> (i % 8) & 1) == 1;
     }
 
     /**
@@ -343,13 +439,11 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
-        if (value) {
-            if (isSlotUsed(i)) return;
-            header[i / 8] += (1 << (i % 8));
-        } else {
-            if (!isSlotUsed(i)) return;
-            header[i / 8] -= (1 << (i % 8));
-        }
+        ByteBuffer buf = writableData();
+        int b = buf.get(i / 8);
+        if (value) b |= 1 << (i % 8);
+        else b &= ~(1 << (i % 8));
+        buf.put(i / 8, (byte) b);
     }
 
     /**
@@ -364,23 +458,16 @@ public class HeapPage implements Page {
 
             @Override
             public boolean hasNext() {
-                if (cur < numSlots && isSlotUsed(cur)) return true;
-                while (cur < numSlots && isSlotUsed(cur ++) == false);
-                if (cur < numSlots) return true;
-                else return false;
+                while (cur < numSlots && !isSlotUsed(cur)) cur ++;
+                return cur < numSlots;
             }
 
             @Override
             public Tuple next() {
-                // System.out.println(getNumTuples());
-                if (isSlotUsed(cur)) return tuples[cur ++];
-                else {
-                    hasNext();
-                    return tuples[cur ++];
-                }
+                if (!hasNext()) throw new NoSuchElementException();
+                return tupleAt(cur ++);
             }
         };
     }
 
 }
-
@@ -1,169 +1,796 @@
 package simpledb.storage;
 
-import simpledb.optimizer.TableStats;
-import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
-// 未处理写锁进读锁的情形
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Shared and exclusive page locks held by transactions, not threads: any
+ * thread may acquire or release locks on behalf of a transaction.
+ * <p>
+ * Locks are multi-granularity: before a transaction locks a page it locks
+ * the page's table in an intention mode, IS for reading and IX for writing
+ * (see {@link LockMode}).  Once it holds more page locks on a table than the
+ * escalation threshold, its lock on the table is escalated to S (from IS)
+ * or SIX (from IX) if that is possible without waiting, and its shared page
+ * locks on the table are released: the table lock covers all its reads.
+ * Exclusive page locks are always taken, they tell which pages a
+ * transaction dirtied.
+ * <p>
+ * The page lock table maps each locked page to an entry with a lock word
+ * and a FIFO queue of waiting requests, so requests for different pages
+ * never contend.  The lock word counts the readers of the page and has a
+ * bit each for a writer and for waiting requests.  A shared lock on a page
+ * with neither is granted, and released, with a single CAS on the word;
+ * writers and requests that wait go through the entry's monitor.  Table
+ * locks are held once per transaction and table, and simply have a monitor.
+ * Each transaction has a hash map of the pages it holds locks on and their
+ * modes, so acquiring, checking and releasing a lock are constant time.  A
+ * request waits if it conflicts with a holder or with a request queued
+ * before it, so writers are not starved by a stream of readers; upgrades go
+ * to the front of the queue.
+ * <p>
+ * A transaction that has to wait for a lock is in the wait-for graph, with
+ * an edge to every transaction holding a conflicting lock on the page or
+ * table, or queued before it with a conflicting request.  Whenever a
+ * transaction blocks, or a waiting one wakes up, the graph is searched for
+ * a cycle through it; if there is one, the youngest transaction in the
+ * cycle is chosen as the victim and its wait ends with a
+ * TransactionAbortedException right away.  Waits only time out if a lock
+ * timeout is set.
+ */
 public class LockManager {
 
-    // in the hashmap, tid -> ArrayList<Lock>
-    private ConcurrentHashMap<TransactionId, ArrayList<ReentrantReadWriteLock>> tidLockMap;
+    /** Page locks a transaction may hold on a table before they are
+    escalated to a table lock, see {@link #setEscalationThreshold}. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1024;
+
+    // the lock word: the number of readers and three flags
+    private static final int READERS = (1 << 28) - 1;
+    private static final int WRITER = 1 << 28;
+    // the queue is not empty, new readers must queue too
+    private static final int WAITERS = 1 << 29;
+    // swept out of the table, a new entry must be looked up
+    private static final int REMOVED = 1 << 30;
 
-    private ConcurrentHashMap<TransactionId, ArrayList<Boolean>> tidTypeMap;
+    // lock state of a page.  readers change the word without the monitor;
+    // the flags, writer and queue only change with it held
+    private static class LockEntry {
+        final AtomicInteger state = new AtomicInteger();
+        TransactionId writer;
+        final ArrayDeque<Request> queue = new ArrayDeque<>();
+    }
+
+    // lock state of a table, protected by its monitor
+    private static class TableLock {
+        final HashMap<TransactionId, LockMode> holders = new HashMap<>();
+        final ArrayDeque<Request> queue = new ArrayDeque<>();
+    }
 
-    // in the hashmap, pid -> lock
-    private ConcurrentHashMap<PageId, ReentrantReadWriteLock> pidLockMap;
+    // a lock request that is waiting, for a page (S or X) or a table
+    private static class Request {
+        final TransactionId tid;
+        final LockMode mode;
+        final int tableId;
+        // null for a table
+        final PageId pid;
+        final LockEntry entry;
+        // null for a page
+        final TableLock table;
 
-    private ConcurrentHashMap<PageId, Integer> pidCount;
+        Request(TransactionId tid, LockMode mode, int tableId, PageId pid, LockEntry entry, TableLock table) {
+            this.tid = tid;
+            this.mode = mode;
+            this.tableId = tableId;
+            this.pid = pid;
+            this.entry = entry;
+            this.table = table;
+        }
 
-    private ConcurrentHashMap<TransactionId, ArrayList<PageId>> tidPidMap;
+        boolean exclusive() {
+            return mode == LockMode.X;
+        }
 
-    // Lock
-    private  Lock startLock = new ReentrantLock();
+        // the object whose monitor protects the lock
+        Object lock() {
+            return entry != null ? entry : table;
+        }
 
-    public LockManager() {
-        tidLockMap = new ConcurrentHashMap<>();
-        pidLockMap = new ConcurrentHashMap<>();
-        tidTypeMap = new ConcurrentHashMap<>();
-        pidCount = new ConcurrentHashMap<>();
-        tidPidMap = new ConcurrentHashMap<>();
+        ArrayDeque<Request> queue() {
+            return entry != null ? entry.queue : table.queue;
+        }
     }
 
-    public  void getWriteLock(TransactionId tid, PageId pid) throws TransactionAbortedException, InterruptedException {
-        startLock.lock();
-        if (!pidLockMap.containsKey(pid)) {
-            pidLockMap.put(pid, new ReentrantReadWriteLock());
+    // the locks of a transaction, protected by the object's monitor.  it may
+    // be taken while holding a page's or table's monitor but not the other
+    // way round
+    private static class TxLocks {
+        // pid -> true for an exclusive lock
+        final HashMap<PageId, Boolean> pages = new HashMap<>();
+        final HashMap<Integer, TableHold> tables = new HashMap<>();
+
+        TableHold table(int tableId) {
+            TableHold h = tables.get(tableId);
+            if (h == null) {
+                h = new TableHold();
+                tables.put(tableId, h);
+            }
+            return h;
         }
-        if (!tidLockMap.containsKey(tid)) {
-            tidLockMap.put(tid, new ArrayList<>());
+    }
+
+    // what a transaction holds on a table
+    private static class TableHold {
+        // null if no table lock
+        LockMode mode;
+        // page locks on the table
+        int pages;
+        // page locks at which escalation is tried again after it failed
+        int escalateAt;
+    }
+
+    // pid -> lock.  entries stay when their page is unlocked, so that
+    // locking it again allocates nothing; they are swept out when the table
+    // has doubled since the last sweep
+    private final ConcurrentHashMap<PageId, LockEntry> lockTable = new ConcurrentHashMap<>();
+    private static final int MIN_SWEEP_SIZE = 4096;
+    private final AtomicInteger sweepSize = new AtomicInteger(MIN_SWEEP_SIZE);
+
+    // table id -> lock; there are few tables, so these stay
+    private final ConcurrentHashMap<Integer, TableLock> tableLocks = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<TransactionId, TxLocks> tidLocks = new ConcurrentHashMap<>();
+
+    // tid -> its waiting requests, one per waiting thread; a set is only
+    // accessed within a compute() of its key
+    private final ConcurrentHashMap<TransactionId, Set<Request>> waiting = new ConcurrentHashMap<>();
+
+    // transactions chosen to break a deadlock, until they release their locks
+    private final Set<TransactionId> victims = ConcurrentHashMap.newKeySet();
+
+    // held while searching the wait-for graph, so that of two transactions
+    // that close a cycle together the second one sees the first
+    private final Object detector = new Object();
+
+    private volatile long lockTimeout = 0;
+    private volatile boolean detectDeadlocks = true;
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+
+    private final LockStats stats = new LockStats();
+
+    public void getWriteLock(TransactionId tid, PageId pid) throws TransactionAbortedException, InterruptedException {
+        acquire(tid, pid, true);
+    }
+
+    public void getReadLock(TransactionId tid, PageId pid) throws InterruptedException, TransactionAbortedException {
+        acquire(tid, pid, false);
+    }
+
+    /**
+     * Takes a read lock on a page only if that does not require waiting,
+     * without locking its table.
+     *
+     * @return whether tid holds a lock on pid now
+     */
+    public boolean tryReadLock(TransactionId tid, PageId pid) {
+        if (pageMode(tid, pid) != null) return true;
+        while (true) {
+            LockEntry e = entry(pid);
+            if (tryShared(e)) {
+                if (record(tid, pid, false) == 0) unlockShared(e);
+                return true;
+            }
+            synchronized (e) {
+                int s = e.state.get();
+                if ((s & REMOVED) != 0) continue;
+                if ((s & (WRITER | WAITERS)) != 0) return false;
+            }
         }
-        if (!tidPidMap.containsKey(tid)) {
-            tidPidMap.put(tid, new ArrayList<>());
+    }
+
+    /**
+     * Locks a table.  Locks on pages of the table take the intention locks
+     * they need themselves.
+     *
+     * @param mode the mode to hold the table in, combined with the one tid
+     *        holds it in already
+     */
+    public void getTableLock(TransactionId tid, int tableId, LockMode mode)
+            throws TransactionAbortedException, InterruptedException {
+        LockMode held = tableMode(tid, tableId);
+        if (held != null && held.covers(mode)) return;
+        LockMode want = held == null ? mode : held.combine(mode);
+        TableLock t = tableLocks.computeIfAbsent(tableId, k -> new TableLock());
+        Request r;
+        synchronized (t) {
+            // an upgrade cannot wait behind requests that wait for it
+            if ((held != null || t.queue.isEmpty()) && tableGrantable(t, tid, want, null)) {
+                grantTable(t, null, tid, tableId, want);
+                return;
+            }
+            r = new Request(tid, want, tableId, null, null, t);
+            if (held != null) t.queue.addFirst(r);
+            else t.queue.addLast(r);
         }
-        if (!tidTypeMap.containsKey(tid)) {
-            tidTypeMap.put(tid, new ArrayList<>());
+        await(r);
+    }
+
+    private void acquire(TransactionId tid, PageId pid, boolean exclusive)
+            throws TransactionAbortedException, InterruptedException {
+        int tableId = pid.getTableId();
+        Boolean held = null;
+        LockMode table = null;
+        TxLocks locks = tidLocks.get(tid);
+        if (locks != null) {
+            synchronized (locks) {
+                held = locks.pages.get(pid);
+                TableHold h = locks.tables.get(tableId);
+                if (h != null) table = h.mode;
+            }
         }
-        if (!pidCount.containsKey(pid)) {
-            pidCount.put(pid, 0);
+        if (held != null && (held || !exclusive)) return;
+        if (!exclusive && table != null && table.covers(LockMode.S)) return;
+        LockMode intent = exclusive ? LockMode.IX : LockMode.IS;
+        if (table == null || !table.covers(intent)) getTableLock(tid, tableId, intent);
+        int pages = acquirePage(tid, pid, exclusive, held != null);
+        int threshold = escalationThreshold;
+        if (threshold > 0 && pages > threshold) escalate(tid, tableId);
+    }
+
+    // returns the page locks tid holds on the table now, 0 if it had this
+    // one already
+    private int acquirePage(TransactionId tid, PageId pid, boolean exclusive, boolean upgrade)
+            throws TransactionAbortedException, InterruptedException {
+        Request r;
+        while (true) {
+            LockEntry e = entry(pid);
+            if (!exclusive && tryShared(e)) {
+                int pages = record(tid, pid, false);
+                if (pages == 0) unlockShared(e);
+                return pages;
+            }
+            synchronized (e) {
+                if ((e.state.get() & REMOVED) != 0) continue;
+                // an upgrade cannot wait behind requests that wait for it
+                if ((upgrade || e.queue.isEmpty()) && tryGrant(e, null, tid, pid, exclusive, upgrade)) {
+                    return upgrade ? 0 : pageLocks(tid, pid.getTableId());
+                }
+                r = new Request(tid, exclusive ? LockMode.X : LockMode.S, pid.getTableId(), pid, e, null);
+                if (upgrade) e.queue.addFirst(r);
+                else e.queue.addLast(r);
+                setFlag(e, WAITERS);
+            }
+            break;
         }
-        startLock.unlock();
-        if (check(tid, pid)) {
-            ArrayList<PageId> pageIds = tidPidMap.get(tid);
-            for (int i = 0; i < pageIds.size(); i ++ ) {
-                if (pageIds.get(i).equals(pid) && !tidTypeMap.get(tid).get(i)) {
-                    tidLockMap.get(tid).get(i).readLock().unlock();
-                    if (!pidLockMap.get(pid).writeLock().tryLock(1, TimeUnit.SECONDS)) {
-                        throw new TransactionAbortedException();
+        await(r);
+        return upgrade ? 0 : pageLocks(tid, pid.getTableId());
+    }
+
+    /**
+     * Waits until a queued request is granted, tid is chosen as a deadlock
+     * victim or the lock timeout expires.
+     */
+    private void await(Request r) throws TransactionAbortedException, InterruptedException {
+        TransactionId tid = r.tid;
+        stats.waits.incrementAndGet();
+        waiting.compute(tid, (k, rs) -> {
+            if (rs == null) rs = new HashSet<>();
+            rs.add(r);
+            return rs;
+        });
+        Object lock = r.lock();
+        long timeout = lockTimeout;
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+        try {
+            while (true) {
+                if (detectDeadlocks) detect(tid);
+                synchronized (lock) {
+                    if (victims.contains(tid)) throw new TransactionAbortedException();
+                    if (tryGrantQueued(r)) return;
+                    if (deadline == 0) {
+                        lock.wait();
+                    } else {
+                        long left = deadline - System.currentTimeMillis();
+                        if (left <= 0) {
+                            stats.timeouts.incrementAndGet();
+                            throw new TransactionAbortedException();
+                        }
+                        lock.wait(left);
                     }
-                    tidTypeMap.get(tid).set(i, true);
                 }
             }
-            return;
+        } finally {
+            synchronized (lock) {
+                // requests behind this one may go now
+                if (r.queue().remove(r)) {
+                    if (r.entry != null && r.entry.queue.isEmpty()) clearFlag(r.entry, WAITERS);
+                    lock.notifyAll();
+                }
+            }
+            waiting.computeIfPresent(tid, (k, rs) -> {
+                rs.remove(r);
+                return rs.isEmpty() ? null : rs;
+            });
         }
-        if (!pidLockMap.get(pid).writeLock().tryLock(1, TimeUnit.SECONDS)) {
-            throw new TransactionAbortedException();
+    }
+
+    // grants a queued request if it is its turn; the caller holds the
+    // monitor of its lock
+    private boolean tryGrantQueued(Request r) {
+        if (r.entry != null) {
+            // another thread of tid may have got the lock meanwhile
+            Boolean held = pageMode(r.tid, r.pid);
+            if (held != null && (held || !r.exclusive())) return true;
+            return first(r.entry, r) && tryGrant(r.entry, r, r.tid, r.pid, r.exclusive(), held != null);
         }
-        pidCount.put(pid, pidCount.get(pid) + 1);
-        tidLockMap.get(tid).add(pidLockMap.get(pid));
-        tidTypeMap.get(tid).add(true);
-        tidPidMap.get(tid).add(pid);
-        System.out.println(tid.getId() + "get write lock on " + pid.getPageNumber());
+        LockMode held = tableMode(r.tid, r.tableId);
+        if (held != null && held.covers(r.mode)) return true;
+        if (!tableGrantable(r.table, r.tid, r.mode, r)) return false;
+        grantTable(r.table, r, r.tid, r.tableId, r.mode);
+        return true;
     }
 
-    public void getReadLock(TransactionId tid, PageId pid) throws InterruptedException, TransactionAbortedException {
-        startLock.lock();
-        if (!pidLockMap.containsKey(pid)) {
-            pidLockMap.put(pid, new ReentrantReadWriteLock());
+    private LockEntry entry(PageId pid) {
+        LockEntry e = lockTable.get(pid);
+        if (e != null) return e;
+        int limit = sweepSize.get();
+        if (lockTable.size() >= limit && sweepSize.compareAndSet(limit, Integer.MAX_VALUE)) {
+            sweep();
+            sweepSize.set(Math.max(MIN_SWEEP_SIZE, 2 * lockTable.size()));
         }
-        if (!tidLockMap.containsKey(tid)) {
-            tidLockMap.put(tid, new ArrayList<>());
+        return lockTable.computeIfAbsent(pid, k -> new LockEntry());
+    }
+
+    // drops the entries of pages nobody locks or waits for
+    private void sweep() {
+        for (Map.Entry<PageId, LockEntry> m : lockTable.entrySet()) {
+            LockEntry e = m.getValue();
+            synchronized (e) {
+                // a reader on the fast path fails on the flag and then sees
+                // it under the monitor
+                if (e.state.compareAndSet(0, REMOVED)) lockTable.remove(m.getKey(), e);
+            }
         }
-        if (!tidPidMap.containsKey(tid)) {
-            tidPidMap.put(tid, new ArrayList<>());
+    }
+
+    // the fast path: a shared lock with one CAS, if there is no writer and
+    // no waiting request
+    private static boolean tryShared(LockEntry e) {
+        int s = e.state.get();
+        return (s & ~READERS) == 0 && e.state.compareAndSet(s, s + 1);
+    }
+
+    private static void setFlag(LockEntry e, int flag) {
+        int s;
+        do {
+            s = e.state.get();
+        } while (!e.state.compareAndSet(s, s | flag));
+    }
+
+    private static void clearFlag(LockEntry e, int flag) {
+        int s;
+        do {
+            s = e.state.get();
+        } while (!e.state.compareAndSet(s, s & ~flag));
+    }
+
+    // whether a queued request is next: only shared requests at the head of
+    // the queue go together
+    private static boolean first(LockEntry e, Request r) {
+        for (Request q : e.queue) {
+            if (q == r) return true;
+            if (q.exclusive() || r.exclusive()) return false;
         }
-        if (!tidTypeMap.containsKey(tid)) {
-            tidTypeMap.put(tid, new ArrayList<>());
+        return false;
+    }
+
+    /**
+     * Grants the lock, and dequeues its request r if it waited, unless it
+     * conflicts with the holders of e.  The caller holds e's monitor, but
+     * readers may come and go on the fast path, so the check and the grant
+     * are a single CAS.
+     */
+    private boolean tryGrant(LockEntry e, Request r, TransactionId tid, PageId pid, boolean exclusive,
+                             boolean upgrade) {
+        int s;
+        int next;
+        do {
+            s = e.state.get();
+            if ((s & WRITER) != 0) return false;
+            if (exclusive) {
+                // an upgrading reader gives up its shared lock
+                if ((s & READERS) != (upgrade ? 1 : 0)) return false;
+                next = (s & ~READERS) | WRITER;
+            } else {
+                next = s + 1;
+            }
+        } while (!e.state.compareAndSet(s, next));
+        if (exclusive) e.writer = tid;
+        if (record(tid, pid, exclusive) == 0 && !exclusive) e.state.decrementAndGet();
+        if (r != null) e.queue.remove(r);
+        if (e.queue.isEmpty()) {
+            clearFlag(e, WAITERS);
+        } else {
+            // the next readers in the queue may go too, and a new holder may
+            // close a cycle of transactions that wait for this page
+            e.notifyAll();
         }
-        if (!pidCount.containsKey(pid)) {
-            pidCount.put(pid, 0);
+        return true;
+    }
+
+    // whether tid may hold t in mode want: it conflicts with no other
+    // holder and, if it is the queued request r, no request before it
+    private static boolean tableGrantable(TableLock t, TransactionId tid, LockMode want, Request r) {
+        for (Map.Entry<TransactionId, LockMode> h : t.holders.entrySet()) {
+            if (!h.getKey().equals(tid) && !h.getValue().compatible(want)) return false;
         }
-        startLock.unlock();
-        if (check(tid, pid)) {
-            return;
+        if (r == null) return true;
+        for (Request q : t.queue) {
+            if (q == r) return true;
+            if (!q.tid.equals(tid) && !q.mode.compatible(want)) return false;
         }
-        if (!pidLockMap.get(pid).readLock().tryLock(1, TimeUnit.SECONDS)) {
-            throw new TransactionAbortedException();
+        return false;
+    }
+
+    // the caller holds t's monitor
+    private void grantTable(TableLock t, Request r, TransactionId tid, int tableId, LockMode mode) {
+        t.holders.put(tid, mode);
+        TxLocks locks = tidLocks.computeIfAbsent(tid, k -> new TxLocks());
+        synchronized (locks) {
+            locks.table(tableId).mode = mode;
         }
-        pidCount.put(pid, pidCount.get(pid) + 1);
-        tidLockMap.get(tid).add(pidLockMap.get(pid));
-        tidTypeMap.get(tid).add(false);
-        tidPidMap.get(tid).add(pid);
-        System.out.println(tid.getId() + "get read lock on " + pid.getPageNumber());
+        if (r != null) t.queue.remove(r);
+        if (!t.queue.isEmpty()) t.notifyAll();
     }
 
-    public boolean release(TransactionId tid) {
-        for (int i = 0; i < tidPidMap.get(tid).size(); i ++ ) {
-            if (tidTypeMap.get(tid).get(i)) {
-                tidLockMap.get(tid).get(i).writeLock().unlock();
-            } else {
-                tidLockMap.get(tid).get(i).readLock().unlock();
+    /**
+     * Replaces the page locks tid holds on a table with a table lock if there
+     * are more of them than the escalation threshold.  This never waits, so
+     * that it cannot cause deadlocks; if the table lock is not available it
+     * is tried again when the number of page locks has doubled.
+     */
+    private void escalate(TransactionId tid, int tableId) {
+        int threshold = escalationThreshold;
+        TxLocks locks = tidLocks.get(tid);
+        if (locks == null) return;
+        LockMode want;
+        synchronized (locks) {
+            TableHold h = locks.tables.get(tableId);
+            if (h == null || h.pages <= Math.max(threshold, h.escalateAt)) return;
+            if (h.mode != LockMode.IS && h.mode != LockMode.IX) return;
+            want = h.mode.combine(LockMode.S);
+            h.escalateAt = 2 * h.pages;
+        }
+        TableLock t = tableLocks.get(tableId);
+        synchronized (t) {
+            if (!t.queue.isEmpty() || !tableGrantable(t, tid, want, null)) return;
+            grantTable(t, null, tid, tableId, want);
+        }
+        stats.escalations.incrementAndGet();
+        // the table lock covers the shared page locks now
+        List<PageId> covered = new ArrayList<>();
+        synchronized (locks) {
+            Iterator<Map.Entry<PageId, Boolean>> it = locks.pages.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<PageId, Boolean> m = it.next();
+                if (!m.getValue() && m.getKey().getTableId() == tableId) {
+                    covered.add(m.getKey());
+                    it.remove();
+                }
             }
-            PageId pageId = tidPidMap.get(tid).get(i);
-            pidCount.put(pageId, pidCount.get(pageId) - 1);
+            locks.table(tableId).pages -= covered.size();
         }
-        tidLockMap.remove(tid);
-        tidPidMap.remove(tid);
-        tidTypeMap.remove(tid);
-        return true;
+        for (PageId pid : covered) unlock(pid, false);
     }
 
-    public boolean release(TransactionId tid, PageId pid) {
-        for (int i = 0; i < tidPidMap.get(tid).size(); i ++ ) {
-            if (tidPidMap.get(tid).get(i).equals(pid)) {
-                PageId pageId = tidPidMap.get(tid).get(i);
-                tidPidMap.get(tid).remove(i);
-                if (tidTypeMap.get(tid).get(i)) {
-                    tidLockMap.get(tid).get(i).writeLock().unlock();
+    // the lock tid holds on pid: true if exclusive, null if none
+    private Boolean pageMode(TransactionId tid, PageId pid) {
+        TxLocks locks = tidLocks.get(tid);
+        if (locks == null) return null;
+        synchronized (locks) {
+            return locks.pages.get(pid);
+        }
+    }
+
+    // the mode tid holds a table in, null if none
+    private LockMode tableMode(TransactionId tid, int tableId) {
+        TxLocks locks = tidLocks.get(tid);
+        if (locks == null) return null;
+        synchronized (locks) {
+            TableHold h = locks.tables.get(tableId);
+            return h == null ? null : h.mode;
+        }
+    }
+
+    // the page locks tid holds on a table
+    private int pageLocks(TransactionId tid, int tableId) {
+        TxLocks locks = tidLocks.get(tid);
+        if (locks == null) return 0;
+        synchronized (locks) {
+            TableHold h = locks.tables.get(tableId);
+            return h == null ? 0 : h.pages;
+        }
+    }
+
+    /**
+     * Adds a page lock to the locks of tid.
+     *
+     * @return the page locks tid holds on the table now, or 0 if it had a
+     *         lock on pid already: the shared lock of another of its threads,
+     *         so that the lock word counts it twice now, or the shared lock
+     *         an exclusive one replaces
+     */
+    private int record(TransactionId tid, PageId pid, boolean exclusive) {
+        TxLocks locks = tidLocks.get(tid);
+        if (locks == null) locks = tidLocks.computeIfAbsent(tid, k -> new TxLocks());
+        synchronized (locks) {
+            if (exclusive ? locks.pages.put(pid, true) != null : locks.pages.putIfAbsent(pid, false) != null) {
+                return 0;
+            }
+            return ++locks.table(pid.getTableId()).pages;
+        }
+    }
+
+    /**
+     * Looks for a cycle through tid in the wait-for graph, and if there is
+     * one chooses a victim and wakes it up.
+     */
+    private void detect(TransactionId tid) throws TransactionAbortedException {
+        TransactionId victim;
+        synchronized (detector) {
+            victim = findVictim(tid);
+            if (victim == null) return;
+            stats.deadlocks.incrementAndGet();
+            victims.add(victim);
+        }
+        if (victim.equals(tid)) throw new TransactionAbortedException();
+        for (Request r : requestsOf(victim)) {
+            Object lock = r.lock();
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    // a copy of the waiting requests of tid
+    private List<Request> requestsOf(TransactionId tid) {
+        List<Request> copy = new ArrayList<>();
+        waiting.computeIfPresent(tid, (k, rs) -> {
+            copy.addAll(rs);
+            return rs;
+        });
+        return copy;
+    }
+
+    // the transactions with a shared lock on pid.  the lock word only counts
+    // them, so this asks every transaction; only deadlock detection needs it
+    private Set<TransactionId> readers(PageId pid) {
+        Set<TransactionId> readers = new HashSet<>();
+        for (Map.Entry<TransactionId, TxLocks> m : tidLocks.entrySet()) {
+            TxLocks locks = m.getValue();
+            synchronized (locks) {
+                if (Boolean.FALSE.equals(locks.pages.get(pid))) readers.add(m.getKey());
+            }
+        }
+        return readers;
+    }
+
+    // the transactions tid waits for
+    private Set<TransactionId> waitsFor(TransactionId tid) {
+        Set<TransactionId> blockers = new HashSet<>();
+        for (Request r : requestsOf(tid)) {
+            Object lock = r.lock();
+            synchronized (lock) {
+                // granted, but its thread has not cleaned up yet
+                if (!r.queue().contains(r)) continue;
+                if (r.entry != null) {
+                    if (r.entry.writer != null) blockers.add(r.entry.writer);
                 } else {
-                    tidLockMap.get(tid).get(i).readLock().unlock();
+                    for (Map.Entry<TransactionId, LockMode> h : r.table.holders.entrySet()) {
+                        if (!h.getValue().compatible(r.mode)) blockers.add(h.getKey());
+                    }
+                }
+                for (Request q : r.queue()) {
+                    if (q == r) break;
+                    if (!q.mode.compatible(r.mode)) blockers.add(q.tid);
                 }
-                pidCount.put(pageId, pidCount.get(pageId) - 1);
-                tidLockMap.get(tid).remove(i);
-                tidTypeMap.get(tid).remove(i);
-                return true;
             }
+            if (r.entry != null && r.exclusive()) blockers.addAll(readers(r.pid));
         }
-        return false;
+        blockers.remove(tid);
+        return blockers;
     }
 
+    /**
+     * @return the youngest transaction of a cycle through tid, or null if
+     *         there is no cycle or it already has a victim
+     */
+    private TransactionId findVictim(TransactionId tid) {
+        // depth first, with the path from tid on the stack
+        List<TransactionId> path = new ArrayList<>();
+        List<List<TransactionId>> todo = new ArrayList<>();
+        Set<TransactionId> visited = new HashSet<>();
+        path.add(tid);
+        todo.add(new ArrayList<>(waitsFor(tid)));
+        visited.add(tid);
+        while (!path.isEmpty()) {
+            List<TransactionId> next = todo.get(todo.size() - 1);
+            if (next.isEmpty()) {
+                path.remove(path.size() - 1);
+                todo.remove(todo.size() - 1);
+                continue;
+            }
+            TransactionId t = next.remove(next.size() - 1);
+            if (t.equals(tid)) {
+                TransactionId victim = null;
+                for (TransactionId p : path) {
+                    if (victims.contains(p)) return null;
+                    if (victim == null || p.getId() > victim.getId()) victim = p;
+                }
+                return victim;
+            }
+            if (!visited.add(t)) continue;
+            path.add(t);
+            todo.add(new ArrayList<>(waitsFor(t)));
+        }
+        return null;
+    }
+
+    /**
+     * Releases all locks of tid, if it has any.
+     */
+    public boolean release(TransactionId tid) {
+        victims.remove(tid);
+        TxLocks locks = tidLocks.remove(tid);
+        if (locks == null) return false;
+        // unlocking takes the monitors of pages and tables, which come
+        // before the transaction's
+        List<Map.Entry<PageId, Boolean>> pages;
+        List<Integer> tables = new ArrayList<>();
+        synchronized (locks) {
+            pages = new ArrayList<>(locks.pages.entrySet());
+            for (Map.Entry<Integer, TableHold> m : locks.tables.entrySet()) {
+                if (m.getValue().mode != null) tables.add(m.getKey());
+            }
+        }
+        for (Map.Entry<PageId, Boolean> m : pages) unlock(m.getKey(), m.getValue());
+        for (int tableId : tables) {
+            TableLock t = tableLocks.get(tableId);
+            synchronized (t) {
+                t.holders.remove(tid);
+                if (!t.queue.isEmpty()) t.notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Releases the lock tid holds on a page, but not the one on its table.
+     */
+    public boolean release(TransactionId tid, PageId pid) {
+        TxLocks locks = tidLocks.get(tid);
+        if (locks == null) return false;
+        Boolean exclusive;
+        synchronized (locks) {
+            exclusive = locks.pages.remove(pid);
+            if (exclusive == null) return false;
+            locks.table(pid.getTableId()).pages--;
+        }
+        unlock(pid, exclusive);
+        return true;
+    }
+
+    private void unlock(PageId pid, boolean exclusive) {
+        LockEntry e = lockTable.get(pid);
+        if (e == null) return;
+        if (!exclusive) {
+            unlockShared(e);
+            return;
+        }
+        synchronized (e) {
+            e.writer = null;
+            clearFlag(e, WRITER);
+            if (!e.queue.isEmpty()) e.notifyAll();
+        }
+    }
+
+    // one CAS, unless a request waits for the page
+    private static void unlockShared(LockEntry e) {
+        if ((e.state.decrementAndGet() & WAITERS) == 0) return;
+        synchronized (e) {
+            e.notifyAll();
+        }
+    }
+
+    /**
+     * @return whether tid holds a lock on pid, or a table lock that covers
+     *         reading it
+     */
     public boolean check(TransactionId tid, PageId pid) {
-        ArrayList<PageId> pageIds = tidPidMap.get(tid);
-        for (PageId pageId : pageIds) {
-            if (pageId.equals(pid)) return true;
+        TxLocks locks = tidLocks.get(tid);
+        if (locks == null) return false;
+        synchronized (locks) {
+            if (locks.pages.containsKey(pid)) return true;
+            TableHold h = locks.tables.get(pid.getTableId());
+            return h != null && h.mode != null && h.mode.covers(LockMode.S);
         }
-        return false;
+    }
+
+    /**
+     * @return whether tid holds a lock on pid itself, not just on its table
+     */
+    public boolean holdsPageLock(TransactionId tid, PageId pid) {
+        return pageMode(tid, pid) != null;
     }
 
     public boolean isLocked(PageId pid) {
-        if (pidCount.get(pid) == 0) return false;
-        return true;
+        LockEntry e = lockTable.get(pid);
+        return e != null && (e.state.get() & (READERS | WRITER)) != 0;
+    }
+
+    public boolean isWriteLocked(PageId pid) {
+        LockEntry e = lockTable.get(pid);
+        return e != null && (e.state.get() & WRITER) != 0;
     }
 
+    /**
+     * @return the mode tid holds a table in, or null if none
+     */
+    public LockMode getTableMode(TransactionId tid, int tableId) {
+        return tableMode(tid, tableId);
+    }
+
+    /**
+     * @return a copy of the pages tid holds page locks on, or null if none.
+     *         Pages it reads under a table lock are not among them.
+     */
     public ArrayList<PageId> getPages(TransactionId tid) {
-        return tidPidMap.get(tid);
+        TxLocks locks = tidLocks.get(tid);
+        if (locks == null) return null;
+        synchronized (locks) {
+            return new ArrayList<>(locks.pages.keySet());
+        }
     }
 
+    /**
+     * Sets how long a lock request may wait before its transaction aborts.
+     *
+     * @param millis the timeout in milliseconds, 0 to wait until the lock is
+     *        granted or a deadlock is detected
+     */
+    public void setLockTimeout(long millis) {
+        lockTimeout = millis;
+    }
 
+    /**
+     * Turns deadlock detection on or off; without it only the lock timeout
+     * ends deadlocks.
+     */
+    public void setDeadlockDetection(boolean on) {
+        detectDeadlocks = on;
+    }
+
+    /**
+     * Sets how many page locks a transaction may hold on a table before
+     * they are escalated to a table lock.
+     *
+     * @param pages the threshold, 0 to never escalate
+     */
+    public void setEscalationThreshold(int pages) {
+        escalationThreshold = pages;
+    }
+
+    public LockStats getStats() {
+        return stats;
+    }
 }
@@ -0,0 +1,54 @@
+package simpledb.storage;
+
+/**
+ * Lock modes of multi-granularity locking.  A transaction locks a table in
+ * an intention mode before it locks pages of the table: IS before shared
+ * page locks, IX before exclusive ones.  S and X lock the whole table, and
+ * SIX is S and IX together: the whole table for reading, and pages of it
+ * for writing.  Pages are only locked in S and X.
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    // COMPATIBLE[a][b]: one transaction may hold a while another holds b
+    private static final boolean[][] COMPATIBLE = {
+            { true, true, true, true, false },
+            { true, true, false, false, false },
+            { true, false, true, false, false },
+            { true, false, false, false, false },
+            { false, false, false, false, false },
+    };
+
+    // COVERS[a][b]: holding a grants everything b does
+    private static final boolean[][] COVERS = {
+            { true, false, false, false, false },
+            { true, true, false, false, false },
+            { true, false, true, false, false },
+            { true, true, true, true, false },
+            { true, true, true, true, true },
+    };
+
+    /**
+     * @return whether another transaction may hold m while one holds this
+     */
+    public boolean compatible(LockMode m) {
+        return COMPATIBLE[ordinal()][m.ordinal()];
+    }
+
+    /**
+     * @return whether holding this grants everything m does
+     */
+    public boolean covers(LockMode m) {
+        return COVERS[ordinal()][m.ordinal()];
+    }
+
+    /**
+     * @return the weakest mode that covers both this and m
+     */
+    public LockMode combine(LockMode m) {
+        if (covers(m)) return this;
+        if (m.covers(this)) return m;
+        // S and IX
+        return SIX;
+    }
+}
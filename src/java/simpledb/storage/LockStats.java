@@ -0,0 +1,48 @@
+package simpledb.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how often transactions wait for page locks and how
+ * those waits end.  A deadlock is a cycle in the wait-for graph, broken by
+ * aborting one transaction in it; a timeout is a wait that exceeded the
+ * lock timeout, if one is set.  An escalation replaces the page locks a
+ * transaction holds on a table with a lock on the whole table.
+ *
+ * @see BufferPool#setLockTimeout
+ */
+public class LockStats {
+
+    // lock requests that had to wait
+    final AtomicLong waits = new AtomicLong();
+
+    // cycles found in the wait-for graph, one victim each
+    final AtomicLong deadlocks = new AtomicLong();
+
+    // waits ended by the lock timeout
+    final AtomicLong timeouts = new AtomicLong();
+
+    // page locks of a transaction replaced by a lock on their table
+    final AtomicLong escalations = new AtomicLong();
+
+    public long getWaits() {
+        return waits.get();
+    }
+
+    public long getDeadlocks() {
+        return deadlocks.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getEscalations() {
+        return escalations.get();
+    }
+
+    public String toString() {
+        return String.format("locks: waits %d, deadlocks %d, timeouts %d, escalations %d",
+                getWaits(), getDeadlocks(), getTimeouts(), getEscalations());
+    }
+}
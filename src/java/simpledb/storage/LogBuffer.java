@@ -0,0 +1,261 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+
+/**
+ * The in-memory tail of the log.  Records are addressed by LSN and live in a
+ * ring buffer at their LSN modulo its capacity until a flusher thread has
+ * written them to the log file.
+ * <p>
+ * The log reserves the LSNs of a record under its monitor; the appender then
+ * copies the record into the ring with {@link #put}, concurrently with other
+ * appenders and without the monitor.  Records are published in LSN order, so
+ * the flusher only ever writes a gap-free prefix.  It writes whatever was
+ * published since its last write in one go, and forces the file once for all
+ * threads waiting in {@link #awaitDurable} at that point (group commit.)
+ * Records larger than the ring are copied in pieces as it drains.
+ */
+class LogBuffer {
+
+    /** Where the flusher writes the log to. */
+    interface Sink {
+        /** Write the bytes of src to the log at the given LSN. */
+        void write(ByteBuffer src, long lsn) throws IOException;
+
+        /** Force everything written so far to disk. */
+        void force() throws IOException;
+    }
+
+    // how long the flusher waits for work before it checks whether the
+    // buffer is still in use
+    private static final int FLUSHER_INTERVAL = 100;
+
+    private final ByteBuffer ring;
+    private final Sink sink;
+
+    // the ring holds LSNs [written, filled), appenders are copying to
+    // [filled, end of the reserved LSNs).  everything below is protected by
+    // this
+    private long filled;
+    private long written;
+    private long durable;
+    // the highest LSN a thread waits to be durable
+    private long forceRequest;
+    private IOException failure;
+    private boolean closed;
+
+    // number of forces done by the flusher, for benchmarks
+    private long forces;
+
+    /**
+     * Creates a buffer of the given capacity for a log that ends at lsn, and
+     * starts its flusher thread.
+     */
+    LogBuffer(int capacity, Sink sink, long lsn) {
+        this.ring = ByteBuffer.allocate(capacity);
+        this.sink = sink;
+        this.filled = this.written = this.durable = this.forceRequest = lsn;
+        Thread flusher = new Thread(new Flusher(this), "simpledb-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Starts the log over at lsn.  The buffer must be empty, i.e. every
+     * reserved LSN must have been written.
+     */
+    synchronized void reset(long lsn) {
+        filled = written = durable = forceRequest = lsn;
+        notifyAll();
+    }
+
+    /**
+     * Copies a record into the ring at the LSN reserved for it, waiting for
+     * room as necessary, and publishes it once the records before it are.
+     */
+    void put(long lsn, byte[] record) throws IOException {
+        int done = 0;
+        while (done < record.length) {
+            int n;
+            synchronized (this) {
+                long room;
+                while (true) {
+                    checkOpen();
+                    room = written + ring.capacity() - (lsn + done);
+                    if (room >= record.length - done) break;
+                    // a record that does not fit goes in piece by piece,
+                    // once every record before it is published
+                    if (room > 0 && filled == lsn + done) break;
+                    waitUninterruptibly();
+                }
+                n = (int) Math.min(record.length - done, room);
+            }
+            copy(record, done, n, lsn + done);
+            synchronized (this) {
+                while (filled != lsn + done) {
+                    checkOpen();
+                    waitUninterruptibly();
+                }
+                filled += n;
+                notifyAll();
+            }
+            done += n;
+        }
+    }
+
+    // copies n bytes of record into the ring at lsn; no one else touches
+    // that part of the ring until it is published
+    private void copy(byte[] record, int from, int n, long lsn) {
+        ByteBuffer dst = ring.duplicate();
+        int pos = (int) (lsn % ring.capacity());
+        int first = Math.min(n, ring.capacity() - pos);
+        dst.position(pos);
+        dst.put(record, from, first);
+        if (first < n) {
+            dst.position(0);
+            dst.put(record, from + first, n - first);
+        }
+    }
+
+    /** Waits until the log is written to the file up to lsn, not forced. */
+    synchronized void awaitWritten(long lsn) throws IOException {
+        while (written < lsn) {
+            checkOpen();
+            notifyAll();
+            waitInterruptibly();
+        }
+    }
+
+    /** Waits until the log is on disk up to lsn. */
+    synchronized void awaitDurable(long lsn) throws IOException {
+        if (durable >= lsn) return;
+        forceRequest = Math.max(forceRequest, lsn);
+        notifyAll();
+        while (durable < lsn) {
+            checkOpen();
+            waitInterruptibly();
+        }
+    }
+
+    /** @return the LSN up to which the log is on disk */
+    synchronized long getDurableLsn() {
+        return durable;
+    }
+
+    /** @return the number of forces done by the flusher */
+    synchronized long getForces() {
+        return forces;
+    }
+
+    /** Stops the flusher; records not written by now are lost. */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null) throw new IOException("writing the log failed", failure);
+        if (closed) throw new IOException("the log is closed");
+    }
+
+    private void waitInterruptibly() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the log");
+        }
+    }
+
+    // appenders must publish what they reserved, or later records are stuck
+    private void waitUninterruptibly() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * One round of the flusher: waits a while for published records or a
+     * force request, then writes and forces them.
+     *
+     * @return false once the buffer is closed
+     */
+    private boolean flush() throws InterruptedException {
+        long from, to;
+        boolean force;
+        synchronized (this) {
+            if (closed) return false;
+            // a force request for LSNs that are reserved but not published
+            // yet waits for them, forcing nothing new would only spin
+            if (failure != null || (filled == written && (forceRequest <= durable || durable >= filled))) {
+                wait(FLUSHER_INTERVAL);
+                return true;
+            }
+            from = written;
+            to = filled;
+            force = forceRequest > durable && to > durable;
+        }
+        try {
+            if (to > from) {
+                // at most two pieces, the ring may wrap
+                int pos = (int) (from % ring.capacity());
+                int len = (int) Math.min(to - from, ring.capacity() - pos);
+                ByteBuffer src = ring.duplicate();
+                src.limit(pos + len).position(pos);
+                sink.write(src, from);
+                if (from + len < to) {
+                    src = ring.duplicate();
+                    src.limit((int) (to - from - len)).position(0);
+                    sink.write(src, from + len);
+                }
+            }
+            synchronized (this) {
+                written = to;
+                notifyAll();
+            }
+            if (force) {
+                sink.force();
+                synchronized (this) {
+                    durable = Math.max(durable, to);
+                    forces++;
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes and forces the log in the background.  It only holds the buffer
+     * weakly and stops once the buffer is gone.
+     */
+    private static class Flusher implements Runnable {
+        private final WeakReference<LogBuffer> buffer;
+
+        Flusher(LogBuffer buffer) {
+            this.buffer = new WeakReference<>(buffer);
+        }
+
+        public void run() {
+            while (true) {
+                LogBuffer b = buffer.get();
+                try {
+                    if (b == null || !b.flush()) return;
+                } catch (InterruptedException e) {
+                    return;
+                }
+                b = null;
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.lang.reflect.*;
 
@@ -21,8 +22,8 @@ two-phase locking discipline are followed.  <p>
 Many of the methods here are synchronized (to prevent concurrent log
 writes from happening); many of the methods in BufferPool are also
 synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+log records (on page flushed) and the log file writes and discards
+BufferPool pages (on rollback and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
 must not be declared synchronized and must begin with a block like:
 
@@ -43,20 +44,26 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
+<li> The log file itself holds a single long integer: the LSN of the
 last written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are in segment files next to the log file, each
+holding SEGMENT_SIZE bytes of the log and named after the log file
+followed by the LSN of their first byte in hex (see LogSegments.)  LSNs
+count the bytes appended to the log since it was started, and a record
+may continue in the next segment.  Truncating the log deletes the
+segments before the oldest record that is still needed.
+
+<li> Log records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing
+the position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, and DELTA
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -65,18 +72,31 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li>DELTA RECORDS log an update as the byte ranges of the page that
+differ between the before and after image.  They consist of the page
+class name and page id as in a serialized Page, an integer count of
+ranges, and for each range an integer offset, an integer length, and
+the before and after bytes.  logWrite() writes one instead of an UPDATE
+record whenever both images are pages of the same class and size.
+
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, and of the
+dirty page table: the pages whose logged changes may not all be in their
+files yet, with the LSN of the first log record of such a change.  The
+format of the record is an integer count of the number of transactions, as
+well as a long integer transaction id and a long integer first record LSN
+for each active transaction, followed by an integer count of dirty pages,
+and for each dirty page its id (serialized as in a Page) and a long integer
+record LSN.
 
 </ul>
 */
 public class LogFile {
 
     final File logFile;
+    // holds the checkpoint LSN, the records are in segments
     private RandomAccessFile raf;
+    private final LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -84,17 +104,36 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
+    // changed byte ranges at most this far apart are logged as one, a
+    // range costs two ints
+    static final int DELTA_GAP = 2 * INT_SIZE;
+
+    long currentOffset = -1;// LSN of the end of the log, protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
 
+    /** Size of the log buffer in bytes */
+    public static final int BUFFER_SIZE = 1 << 20;
+
+    /** Default size of a log segment file in bytes */
+    public static final long SEGMENT_SIZE = 16L << 20;
+
+    // records appended but maybe not written to the segments yet; anything
+    // that reads them must first wait until the buffer is written up to the
+    // end
+    private final LogBuffer buffer;
+
+    // where readRecord() reads the log from
+    private LogSegments.Reader in;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -107,9 +146,28 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, SEGMENT_SIZE);
+    }
+
+    /** Constructor for a log with segment files of the given size.
+
+        @param f The log file's name
+        @param segmentSize The size of a segment file in bytes
+    */
+    public LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
+        buffer = new LogBuffer(BUFFER_SIZE, new LogBuffer.Sink() {
+            public void write(ByteBuffer src, long lsn) throws IOException {
+                segments.write(src, lsn);
+            }
+
+            public void force() throws IOException {
+                segments.force();
+            }
+        }, 0);
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -129,14 +187,51 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            writeCheckpointLsn(NO_CHECKPOINT_ID);
+            segments.deleteAll();
+            currentOffset = 0;
+            buffer.reset(0);
         }
     }
 
+    /** Reserve the LSNs of a record at the end of the log and set its
+        start LSN.  Must be called with the log monitor held; the caller
+        then copies the record into the log buffer with LogBuffer.put(),
+        which need not hold the monitor.
+
+        @param record A record ending with a placeholder for its start LSN
+        @return the LSN the record starts at
+    */
+    private long reserve(byte[] record) {
+        long start = currentOffset;
+        ByteBuffer.wrap(record).putLong(record.length - LONG_SIZE, start);
+        currentOffset += record.length;
+        return start;
+    }
+
+    // the LSN of the last complete checkpoint, or NO_CHECKPOINT_ID
+    private long readCheckpointLsn() throws IOException {
+        if (raf.length() < LONG_SIZE) return NO_CHECKPOINT_ID;
+        raf.seek(0);
+        return raf.readLong();
+    }
+
+    // durably, since segments are deleted based on it
+    private void writeCheckpointLsn(long lsn) throws IOException {
+        raf.seek(0);
+        raf.writeLong(lsn);
+        raf.setLength(LONG_SIZE);
+        raf.getChannel().force(true);
+    }
+
+    // a record without payload, e.g. ABORT
+    private static byte[] record(int type, long tid) {
+        ByteBuffer record = ByteBuffer.allocate(INT_SIZE + 2 * LONG_SIZE);
+        record.putInt(type);
+        record.putLong(tid);
+        return record.array();
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -160,10 +255,8 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                byte[] record = record(ABORT_RECORD, tid.getId());
+                buffer.put(reserve(record), record);
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -171,56 +264,176 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The caller does not hold the log
+        monitor while waiting for the force, so commits that arrive
+        together share one force; see {@link #awaitDurable}.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        byte[] record = record(COMMIT_RECORD, tid.getId());
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            lsn = reserve(record);
+        }
+        buffer.put(lsn, record);
+        awaitDurable(lsn + record.length);
+        // until the commit is durable it can still be rolled back
+        synchronized (this) {
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+    }
+
+    /** @return the LSN just past the last record appended to the log */
+    public synchronized long getEndLsn() {
+        return Math.max(currentOffset, 0);
+    }
+
+    /** Wait until the log is on disk at least up to the given LSN.  The
+        log buffer's flusher forces the log once for all threads waiting at
+        that point (group commit.)
+
+        @param lsn The LSN that must become durable, e.g. from getEndLsn()
+    */
+    public void awaitDurable(long lsn) throws IOException {
+        buffer.awaitDurable(lsn);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** @return the number of forces done by the log buffer's flusher */
+    public long getGroupForces() {
+        return buffer.getForces();
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  Unless the images
+        differ in class or size, the update is written as a DELTA record of
+        just the bytes that changed.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
+    public void logWrite(TransactionId tid, Page before,
+                         Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
-        /* update record conists of
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = after.getPageData();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        if (before.getClass() == after.getClass() && beforeData.length == afterData.length) {
+            /* delta record consists of
+
+               record type
+               transaction id
+               changed ranges (see writeDelta)
+               start offset
+            */
+            out.writeInt(DELTA_RECORD);
+            out.writeLong(tid.getId());
+            writeDelta(out, diff(after, beforeData, afterData));
+        } else {
+            /* update record conists of
+
+               record type
+               transaction id
+               before page data (see writePageData)
+               after page data
+               start offset
+            */
+            out.writeInt(UPDATE_RECORD);
+            out.writeLong(tid.getId());
+
+            writePageData(out,before);
+            writePageData(out,after);
+        }
+        out.writeLong(0); // set by reserve()
+        byte[] record = bytes.toByteArray();
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            lsn = reserve(record);
+        }
+        Debug.log("WRITE, lsn = " + lsn);
+        buffer.put(lsn, record);
+    }
 
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+    /** The byte ranges in which two images of page differ, as a DELTA
+        record without type, tid and start offset. */
+    static LogRecord diff(Page page, byte[] before, byte[] after) {
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < after.length) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend over short gaps, a new range would cost more
+            for (i = end; i < after.length && i - end <= DELTA_GAP; i++) {
+                if (before[i] != after[i]) end = i + 1;
+            }
+            ranges.add(new int[] { start, end });
+            i = end;
+        }
+        LogRecord rec = new LogRecord();
+        rec.type = DELTA_RECORD;
+        rec.pageClass = page.getClass().getName();
+        rec.pid = page.getId();
+        rec.offsets = new int[ranges.size()];
+        rec.beforeBytes = new byte[ranges.size()][];
+        rec.afterBytes = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int[] range = ranges.get(r);
+            rec.offsets[r] = range[0];
+            rec.beforeBytes[r] = Arrays.copyOfRange(before, range[0], range[1]);
+            rec.afterBytes[r] = Arrays.copyOfRange(after, range[0], range[1]);
+        }
+        return rec;
+    }
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+    void writeDelta(DataOutput out, LogRecord rec) throws IOException {
+        // delta data is:
+        // page class name
+        // id class name
+        // id class bytes
+        // id class data
+        // number of ranges
+        // offset, length, before bytes and after bytes of each range
+        out.writeUTF(rec.pageClass);
+        writePageId(out, rec.pid);
+        out.writeInt(rec.offsets.length);
+        for (int r = 0; r < rec.offsets.length; r++) {
+            out.writeInt(rec.offsets[r]);
+            out.writeInt(rec.afterBytes[r].length);
+            out.write(rec.beforeBytes[r]);
+            out.write(rec.afterBytes[r]);
+        }
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    void readDelta(DataInput in, LogRecord rec) throws IOException {
+        rec.pageClass = in.readUTF();
+        rec.pid = readPageId(in);
+        int numRanges = in.readInt();
+        rec.offsets = new int[numRanges];
+        rec.beforeBytes = new byte[numRanges][];
+        rec.afterBytes = new byte[numRanges][];
+        for (int r = 0; r < numRanges; r++) {
+            rec.offsets[r] = in.readInt();
+            int length = in.readInt();
+            rec.beforeBytes[r] = new byte[length];
+            rec.afterBytes[r] = new byte[length];
+            in.readFully(rec.beforeBytes[r]);
+            in.readFully(rec.afterBytes[r]);
+        }
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
         int[] pageInfo = pid.serialize();
 
@@ -248,202 +461,191 @@ public class LogFile {
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    Page readPageData(DataInput raf) throws IOException {
         PageId pid;
         Page newPage = null;
 
         String pageClassName = raf.readUTF();
         String idClassName = raf.readUTF();
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
+        int numIdArgs = raf.readInt();
+        int[] idArgs = new int[numIdArgs];
+        for (int i = 0; i<numIdArgs;i++) {
+            idArgs[i] = raf.readInt();
+        }
+        pid = newPageId(idClassName, idArgs);
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        int pageSize = raf.readInt();
+
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
+
+        newPage = newPage(pageClassName, pid, pageData);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+        //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+        return newPage;
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    void writePageId(DataOutput out, PageId pid) throws IOException {
+        out.writeUTF(pid.getClass().getName());
+        int[] pageInfo = pid.serialize();
+        out.writeInt(pageInfo.length);
+        for (int j : pageInfo) {
+            out.writeInt(j);
+        }
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        int numIdArgs = in.readInt();
+        if (numIdArgs < 0) throw new IOException("bad page id");
+        int[] idArgs = new int[numIdArgs];
+        for (int i = 0; i < numIdArgs; i++) {
+            idArgs[i] = in.readInt();
+        }
+        return newPageId(idClassName, idArgs);
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+    PageId newPageId(String idClassName, int[] args) throws IOException {
+        try {
+            Class<?> idClass = Class.forName(idClassName);
+            Object[] idArgs = new Object[args.length];
+            Class<?>[] idArgTypes = new Class<?>[args.length];
+            for (int i = 0; i < args.length; i++) {
+                idArgs[i] = args[i];
+                idArgTypes[i] = int.class;
+            }
+            Constructor<?> idConst = idClass.getDeclaredConstructor(idArgTypes);
+            return (PageId)idConst.newInstance(idArgs);
+        } catch (ClassNotFoundException | NoSuchMethodException | InvocationTargetException | IllegalAccessException | InstantiationException | ClassCastException e){
+            throw new IOException("can't create page id " + idClassName, e);
         }
-        return newPage;
+    }
 
+    Page newPage(String pageClassName, PageId pid, byte[] pageData) throws IOException {
+        try {
+            Class<?> pageClass = Class.forName(pageClassName);
+            // pages may have more than one constructor, pick Page(PageId, byte[])
+            Constructor<?> pageConst = null;
+            for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length == 2 && params[0].isInstance(pid) && params[1] == byte[].class) pageConst = c;
+            }
+            if (pageConst == null) throw new NoSuchMethodException(pageClassName + "(PageId, byte[])");
+            return (Page)pageConst.newInstance(pid, pageData);
+        } catch (ClassNotFoundException | NoSuchMethodException | InvocationTargetException | IllegalAccessException | InstantiationException | ClassCastException e){
+            throw new IOException("can't create page " + pageClassName, e);
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public void logXactionBegin(TransactionId tid)
         throws IOException {
         Debug.log("BEGIN");
-        if(tidToFirstLogRecord.get(tid.getId()) != null){
-            System.err.print("logXactionBegin: already began this tid\n");
-            throw new IOException("double logXactionBegin()");
+        byte[] record = record(BEGIN_RECORD, tid.getId());
+        long lsn;
+        synchronized (this) {
+            if(tidToFirstLogRecord.get(tid.getId()) != null){
+                System.err.print("logXactionBegin: already began this tid\n");
+                throw new IOException("double logXactionBegin()");
+            }
+            preAppend();
+            tidToFirstLogRecord.put(tid.getId(), currentOffset);
+            lsn = reserve(record);
         }
-        preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        buffer.put(lsn, record);
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN LSN = " + lsn);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+        is fuzzy: it writes no pages and holds no buffer pool lock, so
+        transactions keep running while it is taken.  Instead it records the
+        dirty page table, and recovery starts at the first record a dirty
+        page or a running transaction may need.  The header only points to
+        the checkpoint once it is on disk, so recovery always starts from a
+        complete one.  The page cleaner writes the dirty pages in the
+        background, which lets the next checkpoint truncate more of the log.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        long cpLsn, endLsn;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            // every page logged before this point is in the table, the
+            // buffer pool adds it before logging the page
+            Map<PageId, Long> dirty = Database.getBufferPool().dirtyPageTable();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            out.writeInt(dirty.size());
+            for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+                writePageId(out, e.getKey());
+                out.writeLong(e.getValue());
             }
+            out.writeLong(0); // set by reserve()
+            byte[] record = bytes.toByteArray();
+            cpLsn = reserve(record);
+            endLsn = cpLsn + record.length;
+            buffer.put(cpLsn, record);
         }
+        awaitDurable(endLsn);
+
+        synchronized (this) {
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated, unless a later one got
+            // there first
+            long cpLoc = readCheckpointLsn();
+            if (cpLoc == NO_CHECKPOINT_ID || cpLoc < cpLsn) {
+                writeCheckpointLsn(cpLsn);
+            }
+        }
+        Database.getBufferPool().cleanInBackground();
 
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Deletes the segments that end before the first record
+        the last checkpoint may need, nothing is copied.
+    */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        long cpLoc = readCheckpointLsn();
 
         long minLogRecord = cpLoc;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        if (cpLoc == NO_CHECKPOINT_ID) return;
+        buffer.awaitWritten(getEndLsn());
+        LogRecord cp = readRecord(cpLoc);
+        if (cp == null || cp.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
         }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
+        for (long firstLogRecord : cp.active.values()) {
+            minLogRecord = Math.min(minLogRecord, firstLogRecord);
+        }
+        for (long firstLogRecord : cp.dirty.values()) {
+            minLogRecord = Math.min(minLogRecord, firstLogRecord);
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        // we can drop everything before minLogRecord
+        Debug.log("TRUNCATING LOG BEFORE " + minLogRecord);
+        segments.deleteBefore(minLogRecord);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -460,6 +662,19 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null) throw new NoSuchElementException("no live transaction " + tid.getId());
+                List<LogRecord> updates = new ArrayList<>();
+                buffer.awaitWritten(getEndLsn());
+                for (LogRecord rec = readRecord(first); rec != null; rec = readRecord()) {
+                    if (rec.isUpdate() && rec.tid == tid.getId()) updates.add(rec);
+                }
+                // tid logged every page it wrote before writing it, so the
+                // file has exactly its logged changes; the resident version
+                // may have later ones and is discarded
+                for (PageId pid : undo(updates)) {
+                    Database.getBufferPool().discardPage(pid);
+                }
             }
         }
     }
@@ -471,7 +686,9 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+            buffer.close();
             raf.close();
+            segments.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -487,6 +704,83 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                buffer.awaitWritten(getEndLsn());
+                long cpLoc = readCheckpointLsn();
+
+                // analysis: only the transactions that were running at the
+                // checkpoint and the pages in its dirty page table may need
+                // records before it, so the scan starts at the first of those
+                long start = Math.max(segments.first(), 0);
+                LogRecord cp = null;
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    cp = readRecord(cpLoc);
+                    if (cp != null && cp.type == CHECKPOINT_RECORD) {
+                        start = cpLoc;
+                        for (long firstLogRecord : cp.active.values()) {
+                            start = Math.min(start, firstLogRecord);
+                        }
+                        for (long firstLogRecord : cp.dirty.values()) {
+                            start = Math.min(start, firstLogRecord);
+                        }
+                    } else {
+                        cp = null;
+                    }
+                }
+
+                // redo: repeat history, installing the after image of every
+                // update and the before images of every rollback, in log
+                // order.  Updates before the checkpoint to pages that were
+                // not dirty then, or not yet, are in the file already.
+                Map<Long, List<LogRecord>> live = new LinkedHashMap<>();
+                Set<PageId> touched = new HashSet<>();
+                long end = start;
+                for (LogRecord rec = readRecord(start); rec != null; rec = readRecord()) {
+                    end = in.position();
+                    switch (rec.type) {
+                    case BEGIN_RECORD:
+                        live.put(rec.tid, new ArrayList<>());
+                        break;
+                    case UPDATE_RECORD:
+                    case DELTA_RECORD:
+                        live.computeIfAbsent(rec.tid, k -> new ArrayList<>()).add(rec);
+                        Long recLsn = cp == null ? null : cp.dirty.get(rec.pageId());
+                        if (cp == null || rec.offset >= cpLoc || (recLsn != null && rec.offset >= recLsn)) {
+                            writePage(rec.redo(this, rec.type == DELTA_RECORD ? readPage(rec.pid) : null));
+                            touched.add(rec.pageId());
+                        }
+                        break;
+                    case ABORT_RECORD:
+                        List<LogRecord> undone = live.remove(rec.tid);
+                        if (undone != null) touched.addAll(undo(undone));
+                        break;
+                    case COMMIT_RECORD:
+                        live.remove(rec.tid);
+                        break;
+                    }
+                }
+
+                // a record torn by the crash is dropped, appends go after
+                // the last complete one
+                segments.truncate(end);
+                currentOffset = end;
+                buffer.reset(end);
+                tidToFirstLogRecord.clear();
+
+                // undo: roll back the transactions that were still running
+                // and log that they aborted
+                for (Map.Entry<Long, List<LogRecord>> loser : live.entrySet()) {
+                    Debug.log("RECOVERY: ROLLING BACK " + loser.getKey());
+                    touched.addAll(undo(loser.getValue()));
+                    totalRecords++;
+                    byte[] record = record(ABORT_RECORD, loser.getKey());
+                    buffer.put(reserve(record), record);
+                }
+                force();
+
+                // cached copies of recovered pages are stale
+                for (PageId pid : touched) {
+                    Database.getBufferPool().discardPage(pid);
+                }
             }
          }
     }
@@ -494,10 +788,159 @@ public class LogFile {
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
+        synchronized (this) {
+            buffer.awaitWritten(getEndLsn());
+            System.out.println("checkpoint: " + readCheckpointLsn());
+            for (LogRecord rec = readRecord(Math.max(segments.first(), 0)); rec != null; rec = readRecord()) {
+                String[] names = { "?", "ABORT", "COMMIT", "UPDATE", "BEGIN", "CHECKPOINT", "DELTA" };
+                StringBuilder line = new StringBuilder(rec.offset + ": " + names[rec.type] + " tid " + rec.tid);
+                if (rec.isUpdate()) {
+                    line.append(" page ").append(rec.pageId().getTableId())
+                        .append(":").append(rec.pageId().getPageNumber());
+                }
+                if (rec.type == DELTA_RECORD) {
+                    int bytes = 0;
+                    for (byte[] b : rec.afterBytes) bytes += b.length;
+                    line.append(" ").append(rec.offsets.length).append(" ranges, ").append(bytes).append(" bytes");
+                } else if (rec.type == CHECKPOINT_RECORD) {
+                    line.append(" active ").append(rec.active).append(" dirty ").append(rec.dirty.size());
+                }
+                System.out.println(line);
+            }
+        }
+    }
+
+    /** A log record, as read back by readRecord() */
+    static class LogRecord {
+        int type;
+        long tid;
+        long offset;
+        // UPDATE_RECORD
+        Page before, after;
+        // DELTA_RECORD: ranges of the page starting at offsets
+        String pageClass;
+        PageId pid;
+        int[] offsets;
+        byte[][] beforeBytes, afterBytes;
+        // CHECKPOINT_RECORD: tid -> LSN of its first log record, and
+        // dirty page -> LSN of the first record it may need
+        Map<Long, Long> active;
+        Map<PageId, Long> dirty;
+
+        boolean isUpdate() {
+            return type == UPDATE_RECORD || type == DELTA_RECORD;
+        }
+
+        PageId pageId() {
+            return type == UPDATE_RECORD ? after.getId() : pid;
+        }
+
+        // the page after the update, applied to the current version of a
+        // DELTA record's page
+        Page redo(LogFile log, Page current) throws IOException {
+            return type == UPDATE_RECORD ? after : apply(log, current, afterBytes);
+        }
+
+        // the page before the update
+        Page undo(LogFile log, Page current) throws IOException {
+            return type == UPDATE_RECORD ? before : apply(log, current, beforeBytes);
+        }
+
+        private Page apply(LogFile log, Page current, byte[][] ranges) throws IOException {
+            byte[] data = current.getPageData();
+            for (int r = 0; r < offsets.length; r++) {
+                System.arraycopy(ranges[r], 0, data, offsets[r], ranges[r].length);
+            }
+            return log.newPage(pageClass, pid, data);
+        }
+    }
+
+    /** Read the log record at the given LSN, see readRecord(). */
+    private LogRecord readRecord(long lsn) {
+        in = segments.reader(lsn);
+        return readRecord();
+    }
+
+    /** Read the log record at the current position of the log.  Returns
+        null at the end of the log, including at a record that a crash cut
+        short or whose segment was deleted; the position is then
+        unspecified.
+    */
+    private LogRecord readRecord() {
+        LogRecord rec = new LogRecord();
+        try {
+            rec.offset = in.position();
+            rec.type = in.readInt();
+            rec.tid = in.readLong();
+            switch (rec.type) {
+            case UPDATE_RECORD:
+                rec.before = readPageData(in);
+                rec.after = readPageData(in);
+                break;
+            case DELTA_RECORD:
+                readDelta(in, rec);
+                break;
+            case CHECKPOINT_RECORD:
+                int numXactions = in.readInt();
+                if (numXactions < 0) return null;
+                rec.active = new HashMap<>();
+                while (numXactions-- > 0) {
+                    long xid = in.readLong();
+                    rec.active.put(xid, in.readLong());
+                }
+                int numDirty = in.readInt();
+                if (numDirty < 0) return null;
+                rec.dirty = new HashMap<>();
+                while (numDirty-- > 0) {
+                    PageId pid = readPageId(in);
+                    rec.dirty.put(pid, in.readLong());
+                }
+                break;
+            case ABORT_RECORD:
+            case COMMIT_RECORD:
+            case BEGIN_RECORD:
+                break;
+            default:
+                return null;
+            }
+            // every record ends with its own LSN
+            return in.readLong() == rec.offset ? rec : null;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Undo the updates, latest first, and write the pages.  Every update
+        of a transaction has the page as it was before the transaction as
+        its before image, since that is only reset on commit, so DELTA
+        records can be undone on the version in the file.  Must be called
+        with the buffer pool and log monitors held.
+
+        @return the pages written
+    */
+    private Set<PageId> undo(List<LogRecord> updates) throws IOException {
+        Map<PageId, Page> pages = new LinkedHashMap<>();
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            LogRecord rec = updates.get(i);
+            PageId pid = rec.pageId();
+            Page current = pages.get(pid);
+            if (current == null && rec.type == DELTA_RECORD) current = readPage(pid);
+            pages.put(pid, rec.undo(this, current));
+        }
+        for (Page p : pages.values()) writePage(p);
+        return pages.keySet();
+    }
+
+    private Page readPage(PageId pid) {
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    }
+
+    private void writePage(Page p) throws IOException {
+        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        buffer.awaitDurable(getEndLsn());
     }
 
 }
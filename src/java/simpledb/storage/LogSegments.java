@@ -0,0 +1,213 @@
+package simpledb.storage;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The records of a log as a sequence of segment files of a fixed size,
+ * addressed by LSN.  The segment starting at LSN s holds the bytes of LSNs
+ * [s, s + segmentSize) and is named after the log file followed by s in hex,
+ * e.g. log.0000000001000000.  Records may continue in the next segment;
+ * readers see one stream of bytes.  Dropping the head of the log deletes
+ * whole segments, nothing is copied.
+ */
+class LogSegments {
+
+    private final File dir;
+    private final String prefix;
+    private final long segmentSize;
+
+    // every segment on disk, by start LSN; channels are opened on demand.
+    // protected by this
+    private final TreeMap<Long, FileChannel> segments = new TreeMap<>();
+    // written since the last force()
+    private final Set<FileChannel> unforced = new HashSet<>();
+    private boolean created;
+
+    /**
+     * Opens the segments of the given log file.
+     */
+    LogSegments(File log, long segmentSize) {
+        File abs = log.getAbsoluteFile();
+        this.dir = abs.getParentFile();
+        this.prefix = abs.getName() + ".";
+        this.segmentSize = segmentSize;
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.startsWith(prefix) || name.length() != prefix.length() + 16) continue;
+            try {
+                segments.put(Long.parseUnsignedLong(name.substring(prefix.length()), 16), null);
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+    }
+
+    private File fileOf(long start) {
+        return new File(dir, prefix + String.format("%016x", start));
+    }
+
+    // the channel of the segment starting at start, created if asked to
+    private FileChannel channel(long start, boolean create) throws IOException {
+        FileChannel ch = segments.get(start);
+        if (ch != null) return ch;
+        if (!segments.containsKey(start)) {
+            if (!create) return null;
+            created = true;
+        }
+        ch = FileChannel.open(fileOf(start).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.put(start, ch);
+        return ch;
+    }
+
+    /** @return the first LSN of the first segment, or -1 if there is none */
+    synchronized long first() {
+        return segments.isEmpty() ? -1 : segments.firstKey();
+    }
+
+    /** Writes the bytes of src at the given LSN, across segments as needed. */
+    synchronized void write(ByteBuffer src, long lsn) throws IOException {
+        while (src.hasRemaining()) {
+            long start = lsn - lsn % segmentSize;
+            FileChannel ch = channel(start, true);
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + (int) Math.min(part.remaining(), start + segmentSize - lsn));
+            int n = ch.write(part, lsn - start);
+            src.position(src.position() + n);
+            lsn += n;
+            unforced.add(ch);
+        }
+    }
+
+    /** Forces everything written so far to disk. */
+    synchronized void force() throws IOException {
+        for (FileChannel ch : unforced) ch.force(true);
+        unforced.clear();
+        if (created) {
+            // so that new segments are still there after a crash
+            try (FileChannel d = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+                d.force(true);
+            } catch (IOException e) {
+                // not supported on this platform
+            }
+            created = false;
+        }
+    }
+
+    /** Deletes the segments that hold only LSNs below lsn. */
+    synchronized void deleteBefore(long lsn) throws IOException {
+        while (!segments.isEmpty() && segments.firstKey() + segmentSize <= lsn) {
+            delete(segments.firstKey());
+        }
+    }
+
+    /** Drops every byte from lsn on. */
+    synchronized void truncate(long lsn) throws IOException {
+        while (!segments.isEmpty() && segments.lastKey() > lsn) {
+            delete(segments.lastKey());
+        }
+        if (!segments.isEmpty() && segments.lastKey() + segmentSize > lsn) {
+            long last = segments.lastKey();
+            channel(last, false).truncate(lsn - last);
+        }
+    }
+
+    /** Deletes every segment. */
+    synchronized void deleteAll() throws IOException {
+        while (!segments.isEmpty()) delete(segments.firstKey());
+    }
+
+    private void delete(long start) throws IOException {
+        FileChannel ch = segments.remove(start);
+        if (ch != null) {
+            unforced.remove(ch);
+            ch.close();
+        }
+        File f = fileOf(start);
+        if (f.exists() && !f.delete()) throw new IOException("can't delete log segment " + f);
+    }
+
+    /** Closes the segment files. */
+    synchronized void close() throws IOException {
+        for (Map.Entry<Long, FileChannel> e : segments.entrySet()) {
+            if (e.getValue() != null) e.getValue().close();
+            e.setValue(null);
+        }
+        unforced.clear();
+    }
+
+    /** @return a reader of the log from lsn on */
+    Reader reader(long lsn) {
+        return new Reader(new Input(lsn));
+    }
+
+    /** Reads the log across segments; the end of the log is an EOF. */
+    static class Reader extends DataInputStream {
+        private final Input input;
+
+        private Reader(Input input) {
+            super(input);
+            this.input = input;
+        }
+
+        /** @return the LSN of the next byte to read */
+        long position() {
+            return input.lsn;
+        }
+    }
+
+    private class Input extends InputStream {
+        private final ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        // LSN of the next byte to read, the buffer holds the bytes from it
+        private long lsn;
+
+        Input(long lsn) {
+            this.lsn = lsn;
+            buf.limit(0);
+        }
+
+        private boolean fill() throws IOException {
+            if (buf.hasRemaining()) return true;
+            long start = lsn - lsn % segmentSize;
+            FileChannel ch;
+            synchronized (LogSegments.this) {
+                ch = channel(start, false);
+            }
+            if (ch == null) return false;
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), start + segmentSize - lsn));
+            int n = ch.read(buf, lsn - start);
+            buf.flip();
+            return n > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) return -1;
+            lsn++;
+            return buf.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            lsn += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package simpledb.storage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K replacement (O'Neil et al.).  The victim is the page whose K-th most
+ * recent reference lies furthest in the past; pages referenced fewer than K
+ * times count as infinitely old and go first, in LRU order.  This keeps a
+ * single sequential scan from flushing out pages that are used repeatedly.
+ * <p>
+ * A hit only records the time of the reference, in O(1).  The candidates
+ * wait in a heap under the key they had when they were queued; since keys
+ * only grow, a page whose key changed since is queued again under its
+ * current key when it comes to the top, and the top is the victim once its
+ * key is current.
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+    // a resident page and the times of its last k references, most recent
+    // first, 0 if unused
+    private static class History {
+        final PageId pid;
+        final long[] times;
+        // its entry in the heap
+        Entry queued;
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.times = new long[k];
+        }
+    }
+
+    // a page in the heap, with its key when it was queued
+    private static class Entry {
+        final History history;
+        final long kth;
+        final long last;
+
+        Entry(History h) {
+            this.history = h;
+            this.kth = h.times[h.times.length - 1];
+            this.last = h.times[0];
+        }
+
+        boolean current() {
+            History h = history;
+            return h.times[h.times.length - 1] == kth && h.times[0] == last;
+        }
+    }
+
+    // number of references remembered per page
+    private final int k;
+
+    private final HashMap<PageId, History> history;
+
+    // eviction order: oldest k-th reference first, ties (in particular pages
+    // with fewer than k references) broken by plain LRU.  Holds one entry
+    // per resident page, and entries of pages that were queued again or
+    // left, which are dropped when they come to the top.
+    private final PriorityQueue<Entry> heap;
+
+    // logical clock, incremented on every reference
+    private long clock;
+
+    public LruKPolicy(int k) {
+        if (k < 1) throw new IllegalArgumentException("k must be positive");
+        this.k = k;
+        history = new HashMap<>();
+        heap = new PriorityQueue<>(Comparator.<Entry>comparingLong(e -> e.kth).thenComparingLong(e -> e.last));
+        clock = 0;
+    }
+
+    public void pageAdded(PageId pid) {
+        if (history.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        History h = new History(pid, k);
+        h.times[0] = ++ clock;
+        history.put(pid, h);
+        queue(h);
+    }
+
+    public void pageAccessed(PageId pid) {
+        History h = history.get(pid);
+        if (h == null) return;
+        System.arraycopy(h.times, 0, h.times, 1, k - 1);
+        h.times[0] = ++ clock;
+    }
+
+    public void pageRemoved(PageId pid) {
+        History h = history.remove(pid);
+        if (h != null) h.queued = null;
+        // drop the entries of pages that left once they outnumber the
+        // resident pages
+        if (heap.size() > 2 * history.size() + 16) {
+            heap.clear();
+            for (History r : history.values()) queue(r);
+        }
+    }
+
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        List<Entry> skipped = new ArrayList<>();
+        PageId victim = null;
+        while (victim == null && !heap.isEmpty()) {
+            Entry e = heap.poll();
+            History h = e.history;
+            if (h.queued != e) continue;
+            if (!e.current()) {
+                queue(h);
+            } else {
+                skipped.add(e);
+                if (evictable.test(h.pid)) victim = h.pid;
+            }
+        }
+        // the victim stays tracked until it is evicted
+        heap.addAll(skipped);
+        return victim;
+    }
+
+    private void queue(History h) {
+        Entry e = new Entry(h);
+        h.queued = e;
+        heap.add(e);
+    }
+}
@@ -0,0 +1,41 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Least recently used replacement.  The resident pages are kept in an
+ * access-ordered LinkedHashMap, so a hit just relinks the entry at the
+ * most recently used end.
+ */
+public class LruPolicy implements ReplacementPolicy {
+
+    // access-ordered, eldest entry is the least recently used page
+    private final LinkedHashMap<PageId, Boolean> pages;
+
+    public LruPolicy() {
+        pages = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public void pageAdded(PageId pid) {
+        pages.put(pid, Boolean.TRUE);
+    }
+
+    public void pageAccessed(PageId pid) {
+        pages.get(pid);
+    }
+
+    public void pageRemoved(PageId pid) {
+        pages.remove(pid);
+    }
+
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        Iterator<PageId> it = pages.keySet().iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.test(pid)) return pid;
+        }
+        return null;
+    }
+}
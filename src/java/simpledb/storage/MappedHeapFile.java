@@ -0,0 +1,104 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MappedHeapFile is a HeapFile whose pages are read from a read-only memory
+ * mapping of the backing file instead of with read calls.  HeapPages are
+ * parsed straight out of the mapped region, so page reads neither copy the
+ * page into the Java heap first nor make a system call, and every process
+ * that maps the same file shares one copy of it in the OS page cache.
+ * <p>
+ * It is meant for read-mostly tables, e.g. ones loaded once with
+ * HeapFileEncoder and then only scanned.  Writes still go through
+ * {@link HeapFile#writePage}; the mapping is shared, so they are visible to
+ * later reads.  Growth of the file is picked up by mapping the grown region
+ * again.  Until a page is modified its tuples decode their fields straight
+ * from the mapping.
+ * <p>
+ * The file is mapped in chunks of CHUNK_PAGES pages so that files larger
+ * than 2 GB, which a single MappedByteBuffer cannot cover, work as well.
+ *
+ * @see HeapFile
+ */
+public class MappedHeapFile extends HeapFile {
+
+    // pages per mapped chunk
+    static final int CHUNK_PAGES = 16384;
+
+    // chunk number -> mapping of that chunk, possibly shorter than a full
+    // chunk if the file ended inside it when it was mapped
+    private final ConcurrentHashMap<Integer, MappedByteBuffer> chunks;
+
+    /**
+     * Constructs a memory-mapped heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     */
+    public MappedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+        chunks = new ConcurrentHashMap<>();
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        if (!backingFile().exists()) throw new IllegalArgumentException("no such file: " + backingFile());
+        int pageSize = BufferPool.getPageSize();
+        int chunkNo = pid.getPageNumber() / CHUNK_PAGES;
+        int offset = (pid.getPageNumber() % CHUNK_PAGES) * pageSize;
+        try {
+            MappedByteBuffer chunk = chunks.get(chunkNo);
+            if (chunk == null || chunk.capacity() < offset + pageSize) {
+                chunk = map(chunkNo, offset + pageSize);
+            }
+            if (chunk == null) {
+                // beyond the end of the file, like HeapFile this reads as an
+                // empty page
+                return new HeapPage((HeapPageId) pid, HeapPage.createEmptyPageData());
+            }
+            ByteBuffer page = chunk.duplicate();
+            page.position(offset);
+            return new HeapPage((HeapPageId) pid, page);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Maps chunk chunkNo again, as far as the file currently reaches.
+     *
+     * @return the new mapping, or null if it would be shorter than needed
+     */
+    private synchronized MappedByteBuffer map(int chunkNo, int needed) throws IOException {
+        long chunkSize = (long) CHUNK_PAGES * BufferPool.getPageSize();
+        long start = chunkNo * chunkSize;
+        MappedByteBuffer chunk = chunks.get(chunkNo);
+        // someone else may have remapped it while we were waiting
+        if (chunk != null && chunk.capacity() >= needed) return chunk;
+
+        FileChannel ch = channel();
+        long length = Math.min(chunkSize, ch.size() - start);
+        if (length < needed) return null;
+        chunk = ch.map(FileChannel.MapMode.READ_ONLY, start, length);
+        chunks.put(chunkNo, chunk);
+        return chunk;
+    }
+
+    /**
+     * Drops the mappings and closes the channel to the backing file.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            chunks.clear();
+        }
+        super.close();
+    }
+}
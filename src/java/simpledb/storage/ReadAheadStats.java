@@ -0,0 +1,55 @@
+package simpledb.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how well the BufferPool's sequential read-ahead works.
+ * A prefetched page counts as a hit when a transaction asks for it before it
+ * is evicted, and as wasted when it is evicted without ever being used.
+ *
+ * @see BufferPool#prefetch
+ */
+public class ReadAheadStats {
+
+    // prefetches requested
+    final AtomicLong issued = new AtomicLong();
+
+    // pages actually read by the I/O threads
+    final AtomicLong loaded = new AtomicLong();
+
+    // prefetched pages later requested through getPage()
+    final AtomicLong hits = new AtomicLong();
+
+    // prefetched pages evicted or discarded unused
+    final AtomicLong wasted = new AtomicLong();
+
+    public long getIssued() {
+        return issued.get();
+    }
+
+    public long getLoaded() {
+        return loaded.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getWasted() {
+        return wasted.get();
+    }
+
+    /**
+     * @return the fraction of the pages read ahead that were used, 0 if
+     *         nothing was read ahead yet
+     */
+    public double getHitRate() {
+        long n = loaded.get();
+        return n == 0 ? 0 : (double) hits.get() / n;
+    }
+
+    public String toString() {
+        return String.format("read-ahead: issued %d, loaded %d, hits %d, wasted %d, hit rate %.2f",
+                getIssued(), getLoaded(), getHits(), getWasted(), getHitRate());
+    }
+}
@@ -0,0 +1,86 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up when
+ * it needs room for another one.
+ * <p>
+ * The BufferPool tells the policy about every page that becomes resident,
+ * every hit on a resident page and every page that leaves the pool; when it
+ * has to evict, it asks for a victim among the pages it is allowed to drop
+ * (e.g. clean pages under NO STEAL). Hits must be O(1) since they happen on
+ * every getPage(); choosing a victim only happens on a miss.
+ * <p>
+ * Implementations are not thread safe, the BufferPool calls them while
+ * holding its own lock.
+ *
+ * @see BufferPool#evictPage
+ */
+public interface ReplacementPolicy {
+
+    /** Name of the LRU policy, the default. */
+    String LRU = "lru";
+
+    /** Name of the CLOCK (second chance) policy. */
+    String CLOCK = "clock";
+
+    /** Name of the LRU-K policy (K = 2). */
+    String LRU_K = "lru-k";
+
+    /** Name of the simplified 2Q policy. */
+    String TWO_Q = "2q";
+
+    /**
+     * Records that the page is now resident in the buffer pool.
+     */
+    void pageAdded(PageId pid);
+
+    /**
+     * Records a hit on a resident page.
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * Records that the page left the buffer pool without being evicted,
+     * e.g. because it was discarded.
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Records that the page was evicted after {@link #chooseVictim} chose
+     * it.  Policies that remember evicted pages override this.
+     */
+    default void pageEvicted(PageId pid) {
+        pageRemoved(pid);
+    }
+
+    /**
+     * Chooses the page to evict.  The page stays tracked until
+     * {@link #pageEvicted} or {@link #pageRemoved} is called for it.
+     *
+     * @param evictable tells whether a resident page may be evicted right now
+     * @return the page to evict, or null if no resident page is evictable
+     */
+    PageId chooseVictim(Predicate<PageId> evictable);
+
+    /**
+     * Creates a policy by name.
+     *
+     * @param name one of {@link #LRU}, {@link #CLOCK}, {@link #LRU_K} or
+     *        {@link #TWO_Q}; null selects the default (LRU)
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    static ReplacementPolicy forName(String name) {
+        if (name == null || name.equalsIgnoreCase(LRU)) {
+            return new LruPolicy();
+        } else if (name.equalsIgnoreCase(CLOCK)) {
+            return new ClockPolicy();
+        } else if (name.equalsIgnoreCase(LRU_K)) {
+            return new LruKPolicy(2);
+        } else if (name.equalsIgnoreCase(TWO_Q)) {
+            return new TwoQPolicy();
+        }
+        throw new IllegalArgumentException("unknown replacement policy " + name);
+    }
+}
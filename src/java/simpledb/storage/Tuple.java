@@ -1,9 +1,9 @@
 package simpledb.storage;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * Tuple maintains information about the contents of a tuple. Tuples have a
@@ -20,8 +20,8 @@ public class Tuple implements Serializable {
     // TupleRecordId
     private RecordId recordId;
 
-    // Fields
-    private ArrayList<Field> fields = new ArrayList<Field>();
+    // Fields, null until set
+    Field[] fields;
 
     /**
      * Create a new tuple with the specified schema (type).
@@ -33,6 +33,7 @@ public class Tuple implements Serializable {
     public Tuple(TupleDesc td) {
         // some code goes here
         this.td = td;
+        this.fields = new Field[td.numFields()];
     }
 
     /**
@@ -73,7 +74,7 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
         // some code goes here
-        fields.add(i, f);
+        fields[i] = f;
     }
 
     /**
@@ -84,7 +85,7 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return fields.get(i);
+        return fields[i];
     }
 
     /**
@@ -97,21 +98,12 @@ public class Tuple implements Serializable {
      */
     public String toString() {
         // some code goes here
-        String str = new String();
-        int size = td.getSize();
-        for (int i = 0; i < size - 1; i ++ ) {
-            if (fields.size() > i && fields.get(i) != null) {
-                str = str + fields.get(i) + "\t";
-            } else {
-                str = str + "null\t";
-            }
-        }
-        if (fields.size() > size - 1 && fields.get(size - 1) != null) {
-            str = str + fields.get(size - 1);
-        } else {
-            str = str + "null";
+        StringBuilder str = new StringBuilder();
+        for (int i = 0; i < fields.length; i ++ ) {
+            if (i > 0) str.append('\t');
+            str.append(getField(i));
         }
-        return str;
+        return str.toString();
     }
 
     /**
@@ -127,12 +119,13 @@ public class Tuple implements Serializable {
 
             @Override
             public boolean hasNext() {
-                return cur < td.getSize();
+                return cur < fields.length;
             }
 
             @Override
             public Field next() {
-                return fields.get(cur);
+                if (!hasNext()) throw new NoSuchElementException();
+                return getField(cur ++ );
             }
         };
     }
@@ -143,6 +136,11 @@ public class Tuple implements Serializable {
     public void resetTupleDesc(TupleDesc td)
     {
         // some code goes here
+        if (td.numFields() != fields.length) {
+            // materialize the fields first, this may be a view of a page
+            for (int i = 0; i < fields.length; i ++ ) getField(i);
+            fields = Arrays.copyOf(fields, td.numFields());
+        }
         this.td = td;
     }
 }
@@ -0,0 +1,94 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Simplified 2Q replacement (Johnson and Shasha).  Pages seen for the first
+ * time go to a FIFO queue (A1in); only pages that come back after having been
+ * evicted from A1in, i.e. that are remembered in the ghost queue A1out, are
+ * promoted to the LRU queue Am.  Scans therefore churn through A1in and leave
+ * the hot pages in Am alone.
+ * <p>
+ * The queues are LinkedHashMaps, so hits, insertions and removals are O(1).
+ */
+public class TwoQPolicy implements ReplacementPolicy {
+
+    // share of the resident pages A1in may hold before it is preferred for eviction
+    private static final double IN_FRACTION = 0.25;
+
+    // size of the ghost queue relative to the resident pages
+    private static final double OUT_FRACTION = 0.5;
+
+    private static final int MIN_OUT = 16;
+
+    // resident pages seen once, insertion ordered
+    private final LinkedHashMap<PageId, Boolean> a1in;
+
+    // resident pages seen again, access ordered
+    private final LinkedHashMap<PageId, Boolean> am;
+
+    // ids of pages recently evicted from a1in, insertion ordered
+    private final LinkedHashMap<PageId, Boolean> a1out;
+
+    public TwoQPolicy() {
+        a1in = new LinkedHashMap<>();
+        am = new LinkedHashMap<>(16, 0.75f, true);
+        a1out = new LinkedHashMap<>();
+    }
+
+    public void pageAdded(PageId pid) {
+        if (a1in.containsKey(pid) || am.containsKey(pid)) {
+            pageAccessed(pid);
+        } else if (a1out.remove(pid) != null) {
+            am.put(pid, Boolean.TRUE);
+        } else {
+            a1in.put(pid, Boolean.TRUE);
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        // hits in a1in are deliberately ignored, see the class comment
+        am.get(pid);
+    }
+
+    public void pageRemoved(PageId pid) {
+        // a discarded page was not pushed out, it is not remembered
+        if (a1in.remove(pid) == null) am.remove(pid);
+    }
+
+    public void pageEvicted(PageId pid) {
+        if (a1in.remove(pid) != null) {
+            a1out.put(pid, Boolean.TRUE);
+            int maxOut = Math.max(MIN_OUT, (int) ((a1in.size() + am.size()) * OUT_FRACTION));
+            Iterator<PageId> it = a1out.keySet().iterator();
+            while (a1out.size() > maxOut && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        int resident = a1in.size() + am.size();
+        PageId victim;
+        if (a1in.size() > resident * IN_FRACTION) {
+            victim = firstEvictable(a1in, evictable);
+            if (victim == null) victim = firstEvictable(am, evictable);
+        } else {
+            victim = firstEvictable(am, evictable);
+            if (victim == null) victim = firstEvictable(a1in, evictable);
+        }
+        return victim;
+    }
+
+    private static PageId firstEvictable(LinkedHashMap<PageId, Boolean> queue, Predicate<PageId> evictable) {
+        for (PageId pid : queue.keySet()) {
+            if (evictable.test(pid)) return pid;
+        }
+        return null;
+    }
+}
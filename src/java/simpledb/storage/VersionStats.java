@@ -0,0 +1,46 @@
+package simpledb.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the page versions kept for snapshot reads.  A
+ * conflict is a transaction aborted because it tried to change a page that
+ * another transaction changed and committed after its snapshot was taken.
+ *
+ * @see BufferPool#setMvcc
+ */
+public class VersionStats {
+
+    // transactions that took a snapshot
+    final AtomicLong snapshots = new AtomicLong();
+
+    // committed page versions kept
+    final AtomicLong versions = new AtomicLong();
+
+    // versions dropped because no snapshot can see them any more
+    final AtomicLong collected = new AtomicLong();
+
+    // writers aborted by first-committer-wins
+    final AtomicLong conflicts = new AtomicLong();
+
+    public long getSnapshots() {
+        return snapshots.get();
+    }
+
+    public long getVersions() {
+        return versions.get();
+    }
+
+    public long getCollected() {
+        return collected.get();
+    }
+
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    public String toString() {
+        return String.format("versions: snapshots %d, versions %d, collected %d, conflicts %d",
+                getSnapshots(), getVersions(), getCollected(), getConflicts());
+    }
+}
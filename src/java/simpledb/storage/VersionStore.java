@@ -0,0 +1,232 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Committed versions of pages, for snapshot reads.  Every commit that
+ * changed pages gets a timestamp; the snapshot of a transaction is the
+ * timestamp of the last commit before its first snapshot read, and it sees
+ * every page as that commit left it.
+ * <p>
+ * A page that is changed gets a chain of versions, newest first, each the
+ * contents of the page as committed at a timestamp.  The chain starts when
+ * a writer first locks the page, or a snapshot first reads it, with the
+ * committed contents at that point and timestamp 0: they are older than
+ * every snapshot still running or to be taken.  Each commit of the page
+ * adds a version.  A page without a chain has a single committed version,
+ * the one in the buffer pool or in its file.
+ * <p>
+ * Versions older than the newest one every running snapshot sees are
+ * dropped, and so are chains that only have such a version and no writer,
+ * once the number of versions kept has doubled since the last collection.
+ * A chain with only its first version and no writer is also dropped when
+ * its page leaves the buffer pool.
+ */
+class VersionStore {
+
+    // a committed version of a page, never changed
+    private static class Version {
+        final long ts;
+        final Page page;
+        // cut off once no snapshot can see it
+        volatile Version older;
+
+        Version(long ts, Page page, Version older) {
+            this.ts = ts;
+            this.page = page;
+            this.older = older;
+        }
+    }
+
+    private static final int MIN_COLLECT_SIZE = 1024;
+
+    // whose write locks keep chains alive
+    private final LockManager lockManager;
+
+    // pid -> newest version; a chain only changes within a compute() of its
+    // page
+    private final ConcurrentHashMap<PageId, Version> versions = new ConcurrentHashMap<>();
+
+    // tid -> its snapshot
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+
+    // tid -> the pages it logged changes to
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> changed = new ConcurrentHashMap<>();
+
+    // timestamp of the last commit; protected by this, like taking snapshots
+    private long clock;
+
+    private final AtomicLong collectSize = new AtomicLong(MIN_COLLECT_SIZE);
+
+    private final VersionStats stats = new VersionStats();
+
+    VersionStore(LockManager lockManager) {
+        this.lockManager = lockManager;
+    }
+
+    VersionStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return the snapshot of tid, taken on the first call
+     */
+    long snapshot(TransactionId tid) {
+        Long s = snapshots.get(tid);
+        if (s != null) return s;
+        synchronized (this) {
+            s = snapshots.get(tid);
+            if (s == null) {
+                s = clock;
+                snapshots.put(tid, s);
+                stats.snapshots.incrementAndGet();
+            }
+            return s;
+        }
+    }
+
+    /**
+     * @return the version of a page the snapshot sees, or null if the page
+     *         has a single committed version
+     */
+    Page visible(PageId pid, long snapshot) {
+        Version v = versions.get(pid);
+        if (v == null) return null;
+        while (v.ts > snapshot) v = v.older;
+        return v.page;
+    }
+
+    /**
+     * Starts the chain of a page a snapshot reads, with the committed
+     * contents of its resident copy, unless it has one.  Later snapshot
+     * reads share that version instead of copying the page again.
+     */
+    void keep(Page page) {
+        versions.computeIfAbsent(page.getId(), k -> {
+            stats.versions.incrementAndGet();
+            return new Version(0, page.getBeforeImage(), null);
+        });
+    }
+
+    /**
+     * Drops the chain of a page that left the buffer pool if it only has
+     * its first version and no writer: that is what the file holds.
+     */
+    void forget(PageId pid) {
+        versions.computeIfPresent(pid, (k, head) -> {
+            if (head.ts != 0 || lockManager.isWriteLocked(k)) return head;
+            stats.collected.incrementAndGet();
+            return null;
+        });
+    }
+
+    /**
+     * Starts the chain of a page tid has locked for writing, before tid
+     * changes it.
+     *
+     * @throws TransactionAbortedException if another transaction committed
+     *         a change to the page after the snapshot of tid: the first
+     *         committer wins
+     */
+    void beforeWrite(TransactionId tid, Page page) throws TransactionAbortedException {
+        Version head = versions.compute(page.getId(), (k, v) -> {
+            if (v != null) return v;
+            stats.versions.incrementAndGet();
+            return new Version(0, page.getBeforeImage(), null);
+        });
+        Long s = snapshots.get(tid);
+        if (s != null && head.ts > s) {
+            stats.conflicts.incrementAndGet();
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * Records that tid logged a change to a page, which its commit adds to
+     * the chain of the page.
+     */
+    void changed(TransactionId tid, PageId pid) {
+        changed.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+    }
+
+    /**
+     * @return the pages tid logged changes to
+     */
+    Set<PageId> changedPages(TransactionId tid) {
+        Set<PageId> pages = changed.get(tid);
+        return pages == null ? Collections.emptySet() : pages;
+    }
+
+    /**
+     * Adds the pages a transaction just committed to their chains, at a new
+     * timestamp.  Their before images must be their committed contents.
+     */
+    void publish(List<Page> pages) {
+        if (pages.isEmpty()) return;
+        synchronized (this) {
+            long ts = clock + 1;
+            for (Page page : pages) {
+                versions.computeIfPresent(page.getId(), (k, v) -> {
+                    stats.versions.incrementAndGet();
+                    return new Version(ts, page.getBeforeImage(), v);
+                });
+            }
+            clock = ts;
+        }
+    }
+
+    // versions kept and not collected yet
+    private long live() {
+        return stats.versions.get() - stats.collected.get();
+    }
+
+    /**
+     * Ends the snapshot of tid, if it took one, and collects versions if
+     * there are enough of them.
+     */
+    void end(TransactionId tid) {
+        snapshots.remove(tid);
+        changed.remove(tid);
+        long limit = collectSize.get();
+        if (live() >= limit && collectSize.compareAndSet(limit, Long.MAX_VALUE)) {
+            collect();
+            collectSize.set(Math.max(MIN_COLLECT_SIZE, 2 * live()));
+        }
+    }
+
+    /**
+     * Drops the versions no running snapshot can see, nor any snapshot taken
+     * later.
+     */
+    void collect() {
+        long min;
+        synchronized (this) {
+            min = clock;
+            for (long s : snapshots.values()) min = Math.min(min, s);
+        }
+        final long oldest = min;
+        for (PageId pid : versions.keySet()) {
+            versions.computeIfPresent(pid, (k, head) -> {
+                // the newest version every snapshot sees
+                Version v = head;
+                while (v.ts > oldest) v = v.older;
+                for (Version o = v.older; o != null; o = o.older) stats.collected.incrementAndGet();
+                v.older = null;
+                // then the page has one version, unless a writer is changing
+                // it; a writer locks it before it starts a chain
+                if (v == head && !lockManager.isWriteLocked(k)) {
+                    stats.collected.incrementAndGet();
+                    return null;
+                }
+                return head;
+            });
+        }
+    }
+}
@@ -50,16 +50,16 @@ public class Transaction {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } 
 
-            // Release locks and flush pages if needed
-            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-
-            // write commit log record
-            if (!abort) {
-            	Database.getLogFile().logCommit(tid);
+            // Release locks and flush pages if needed; on commit this also
+            // writes the commit log record and waits for it to be forced
+            try {
+                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                //setting this here means we could possibly write multiple abort records -- OK?
+                started = false;
             }
-
-            //setting this here means we could possibly write multiple abort records -- OK?
-            started = false;
         }
     }
 }
@@ -0,0 +1,155 @@
+package simpledb;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class BufferPoolReadTest extends SimpleDbTestBase {
+
+    // class that counts page reads and holds them until released
+    static class SlowHeapFile extends HeapFile {
+
+        final AtomicInteger reads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile boolean failing = false;
+
+        public SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (failing) throw new IllegalArgumentException("read failed");
+            return super.readPage(pid);
+        }
+    }
+
+    private SlowHeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        hf = new SlowHeapFile(f.getFile(), Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+    }
+
+    /**
+     * Concurrent misses on the same page are served by a single read and
+     * all of them see the same page.
+     */
+    @Test public void concurrentMissesShareOneRead() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        int readers = 4;
+        Page[] pages = new Page[readers];
+        Thread[] threads = new Thread[readers];
+        for (int i = 0; i < readers; i ++ ) {
+            final int n = i;
+            threads[i] = new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                try {
+                    pages[n] = Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads[i].start();
+        }
+        // give every reader the chance to miss before the read completes
+        while (hf.reads.get() == 0) Thread.sleep(1);
+        Thread.sleep(100);
+        hf.release.countDown();
+        for (Thread t : threads) t.join();
+
+        assertEquals(1, hf.reads.get());
+        for (int i = 0; i < readers; i ++ ) {
+            assertNotNull(pages[i]);
+            assertSame(pages[0], pages[i]);
+        }
+    }
+
+    /**
+     * A failed read is reported to every waiter and is not cached.
+     */
+    @Test public void failedReadIsRetried() throws Exception {
+        hf.release.countDown();
+        hf.failing = true;
+        TransactionId tid = new TransactionId();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        try {
+            Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            fail("expected the read to fail");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        hf.failing = false;
+        assertNotNull(Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY));
+        assertEquals(2, hf.reads.get());
+    }
+
+    /**
+     * A page read ahead is resident and counts as a hit once a transaction
+     * asks for it.
+     */
+    @Test public void prefetch() throws Exception {
+        hf.release.countDown();
+        BufferPool pool = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        pool.prefetch(hf, pid);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.getReadAheadStats().getLoaded() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, pool.getReadAheadStats().getLoaded());
+        TransactionId tid = new TransactionId();
+        pool.getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(1, hf.reads.get());
+        assertEquals(1, pool.getReadAheadStats().getHits());
+        pool.transactionComplete(tid);
+    }
+
+    /**
+     * A sequential scan reads ahead and still returns every tuple once.
+     */
+    @Test public void scanReadsAhead() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        BufferPool pool = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = big.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count ++;
+        }
+        it.close();
+        assertEquals(504 * 20, count);
+        assertEquals(big.numPages() - 2, pool.getReadAheadStats().getIssued());
+        pool.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolReadTest.class);
+    }
+}
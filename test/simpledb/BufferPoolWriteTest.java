@@ -89,6 +89,37 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
         }
     }
     
+    /**
+     * Unit test for BufferPool.insertTuples()
+     */
+    @Test public void insertTuples() throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 504 * 2 + 10; ++i) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().insertTuples(tid, empty.getId(), tuples.iterator());
+
+        // the tuples fill two pages and spill onto a third
+        assertEquals(3, empty.numPages());
+        for (int i = 0; i < tuples.size(); ++i) {
+            RecordId rid = tuples.get(i).getRecordId();
+            assertEquals(i / 504, rid.getPageId().getPageNumber());
+            assertEquals(i % 504, rid.getTupleNumber());
+        }
+        HeapPage last = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(empty.getId(), 2), Permissions.READ_ONLY);
+        assertEquals(504 - 10, last.getNumEmptySlots());
+        assertEquals(tid, last.isDirty());
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(tuples.get(count).getField(0), it.next().getField(0));
+            count++;
+        }
+        it.close();
+        assertEquals(tuples.size(), count);
+    }
+
     /**
      * Unit test for BufferPool.deleteTuple()
      */
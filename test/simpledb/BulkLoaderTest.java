@@ -0,0 +1,135 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.BulkLoader;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.Predicate;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BulkLoaderTest extends SimpleDbTestBase {
+
+    private static final Predicate.Op[] OPS = { Predicate.Op.EQUALS, Predicate.Op.NOT_EQUALS,
+            Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ,
+            Predicate.Op.LESS_THAN_OR_EQ };
+
+    private static File tempFile(String suffix) throws IOException {
+        File f = File.createTempFile("bulk", suffix);
+        f.deleteOnExit();
+        FreeSpaceMap.fileFor(f).deleteOnExit();
+        return f;
+    }
+
+    /**
+     * Writes rows of random ints in [0, range) and returns them.
+     */
+    private static List<List<Integer>> writeInput(File in, int rows, int columns, int range) throws IOException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        Random rand = new Random(6830);
+        try (FileWriter w = new FileWriter(in)) {
+            for (int i = 0; i < rows; i++) {
+                List<Integer> tuple = new ArrayList<>();
+                for (int j = 0; j < columns; j++) {
+                    tuple.add(rand.nextInt(range));
+                    w.write((j > 0 ? "," : "") + tuple.get(j));
+                }
+                w.write("\n");
+                tuples.add(tuple);
+            }
+        }
+        return tuples;
+    }
+
+    /**
+     * The loaded table is in the catalog with its tuples, and its statistics
+     * are those a scan of the table computes.
+     */
+    @Test public void loadWithStats() throws Exception {
+        File in = tempFile(".txt");
+        List<List<Integer>> tuples = writeInput(in, 5000, 3, 1000);
+        String name = SystemTestUtil.getUUID();
+        HeapFile hf = BulkLoader.load(in, tempFile(".dat"), name, Utility.getTupleDesc(3), ',', 2);
+
+        assertEquals(hf.getId(), Database.getCatalog().getTableId(name));
+        SystemTestUtil.matchTuples(hf, tuples);
+
+        TableStats loaded = TableStats.getTableStats(name);
+        TableStats scanned = new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE);
+        assertEquals(scanned.totalTuples(), loaded.totalTuples());
+        assertEquals(scanned.estimateScanCost(), loaded.estimateScanCost(), 0);
+        for (int field = 0; field < 3; field++) {
+            for (Predicate.Op op : OPS) {
+                for (int v = -10; v <= 1010; v += 101) {
+                    assertEquals(scanned.estimateSelectivity(field, op, new IntField(v)),
+                            loaded.estimateSelectivity(field, op, new IntField(v)), 1e-9);
+                }
+            }
+        }
+    }
+
+    /**
+     * Over a wide range of values the histograms only approximate the ones
+     * a scan computes.
+     */
+    @Test public void wideRange() throws Exception {
+        File in = tempFile(".txt");
+        writeInput(in, 5000, 1, 10000000);
+        String name = SystemTestUtil.getUUID();
+        HeapFile hf = BulkLoader.load(in, tempFile(".dat"), name, Utility.getTupleDesc(1), ',', 1);
+
+        TableStats loaded = TableStats.getTableStats(name);
+        TableStats scanned = new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE);
+        for (int v = 0; v <= 10000000; v += 500000) {
+            assertEquals(scanned.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(v)),
+                    loaded.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(v)), 0.01);
+        }
+    }
+
+    /**
+     * String columns get the same histogram as from a scan.
+     */
+    @Test public void strings() throws Exception {
+        File in = tempFile(".txt");
+        try (FileWriter w = new FileWriter(in)) {
+            for (int i = 0; i < 1000; i++) {
+                w.write(i + "," + (char) ('a' + i % 26) + "word" + i + "\n");
+            }
+        }
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        String name = SystemTestUtil.getUUID();
+        HeapFile hf = BulkLoader.load(in, tempFile(".dat"), name, td, ',', 1);
+
+        TableStats loaded = TableStats.getTableStats(name);
+        TableStats scanned = new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE);
+        String[] probes = { "a", "bword", "m", "zzz" };
+        for (String s : probes) {
+            Field f = new StringField(s, Type.STRING_LEN);
+            for (Predicate.Op op : OPS) {
+                assertEquals(scanned.estimateSelectivity(1, op, f), loaded.estimateSelectivity(1, op, f), 1e-9);
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BulkLoaderTest.class);
+    }
+}
@@ -7,6 +7,8 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -219,6 +221,33 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * A deadlock is detected as soon as it forms, long before any timeout,
+   * and the younger transaction is the one aborted.
+   */
+  @Test public void testDeadlockDetectedImmediately() throws Exception {
+    bp.setLockTimeout(10000);
+
+    LockGrabber lg1Write0 = startGrabber(tid1, p0, Permissions.READ_WRITE);
+    LockGrabber lg2Write1 = startGrabber(tid2, p1, Permissions.READ_WRITE);
+    lg1Write0.join();
+    lg2Write1.join();
+
+    long start = System.currentTimeMillis();
+    LockGrabber lg1Write1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    LockGrabber lg2Write0 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    lg2Write0.join();
+    lg1Write1.join();
+    assertTrue(System.currentTimeMillis() - start < 5000);
+
+    assertNotNull(lg2Write0.getError());
+    assertTrue(lg1Write1.acquired());
+    assertEquals(1, bp.getLockStats().getDeadlocks());
+    assertEquals(0, bp.getLockStats().getTimeouts());
+    bp.transactionComplete(tid1);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,82 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.storage.FreeSpaceMap;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    private File file;
+
+    @Before public void createFile() throws Exception {
+        file = File.createTempFile("table", ".fsm");
+        file.delete();
+        file.deleteOnExit();
+    }
+
+    /**
+     * Unit test for FreeSpaceMap.findPage()
+     */
+    @Test public void findPage() {
+        FreeSpaceMap fsm = new FreeSpaceMap(file, 0);
+        assertEquals(-1, fsm.findPage(0, 10));
+        fsm.setFree(2, true);
+        fsm.setFree(7, true);
+        assertEquals(2, fsm.findPage(0, 10));
+        assertEquals(7, fsm.findPage(3, 10));
+        // wraps around
+        assertEquals(2, fsm.findPage(8, 10));
+        // pages beyond the end of the file don't count
+        assertEquals(2, fsm.findPage(3, 5));
+        fsm.setFree(2, false);
+        assertEquals(-1, fsm.findPage(0, 5));
+    }
+
+    /**
+     * The map survives being loaded again, clipped to the size of the file.
+     */
+    @Test public void persistence() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(file, 0);
+        fsm.setFree(3, true);
+        fsm.setFree(20, true);
+        fsm.setFree(9, true);
+        fsm.setFree(9, false);
+        fsm.close();
+
+        FreeSpaceMap loaded = new FreeSpaceMap(file, 100);
+        assertTrue(loaded.isFree(3));
+        assertFalse(loaded.isFree(9));
+        assertTrue(loaded.isFree(20));
+
+        FreeSpaceMap clipped = new FreeSpaceMap(file, 10);
+        assertTrue(clipped.isFree(3));
+        assertFalse(clipped.isFree(20));
+    }
+
+    /**
+     * A sidecar file that is not a free-space map is ignored.
+     */
+    @Test public void garbage() throws Exception {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, -1, -1 });
+        }
+        FreeSpaceMap fsm = new FreeSpaceMap(file, 100);
+        assertEquals(-1, fsm.findPage(0, 100));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,183 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HeapFileEncoderTest extends SimpleDbTestBase {
+
+    private static final Type[] TYPES = { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE };
+
+    private static File tempFile(String suffix) throws IOException {
+        File f = File.createTempFile("encoder", suffix);
+        f.deleteOnExit();
+        FreeSpaceMap.fileFor(f).deleteOnExit();
+        return f;
+    }
+
+    /**
+     * Writes rows of (i, "s" + i, -i), with the blank lines, Windows line
+     * endings and missing final newline the encoder has to put up with.
+     */
+    private static File writeInput(int rows) throws IOException {
+        File in = tempFile(".txt");
+        Random rand = new Random(830);
+        try (FileWriter w = new FileWriter(in)) {
+            for (int i = 0; i < rows; i++) {
+                if (rand.nextInt(50) == 0) w.write("\n");
+                w.write(i + ", s" + i + " ," + (-i));
+                if (i < rows - 1) w.write(rand.nextBoolean() ? "\r\n" : "\n");
+            }
+        }
+        return in;
+    }
+
+    /**
+     * Every thread count and chunk size produces the same file, and the file
+     * holds the input rows in order.
+     */
+    @Test public void parallelMatchesSerial() throws Exception {
+        int rows = 3000;
+        File in = writeInput(rows);
+        File serial = tempFile(".dat");
+        assertEquals(rows, HeapFileEncoder.convert(in, serial, BufferPool.getPageSize(), 3, TYPES, ',', 1));
+        byte[] expected = TestUtil.readFileBytes(serial.getAbsolutePath());
+
+        int[] chunkSizes = { 7, 100, 4096 };
+        for (int chunkSize : chunkSizes) {
+            File parallel = tempFile(".dat");
+            assertEquals(rows, HeapFileEncoder.convert(in, parallel, BufferPool.getPageSize(), 3, TYPES, ',', 4, chunkSize));
+            assertArrayEquals("chunk size " + chunkSize, expected, TestUtil.readFileBytes(parallel.getAbsolutePath()));
+        }
+
+        HeapFile hf = new HeapFile(serial, new TupleDesc(TYPES));
+        Database.getCatalog().addTable(hf, "encoded");
+        DbFileIterator it = hf.iterator(new TransactionId());
+        it.open();
+        int i = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(new IntField(i), t.getField(0));
+            assertTrue(t.getField(1).compare(Predicate.Op.EQUALS, new StringField("s" + i, Type.STRING_LEN)));
+            assertEquals(new IntField(-i), t.getField(2));
+            i++;
+        }
+        it.close();
+        assertEquals(rows, i);
+    }
+
+    /**
+     * Strings are encoded as the serial encoder always did: decoded with the
+     * default charset, trimmed, cut at STRING_LEN characters and stored one
+     * byte per character, whatever the number of threads.
+     */
+    @Test public void nonAsciiStrings() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < Type.STRING_LEN + 10; i++) sb.append(i % 2 == 0 ? '\u00e9' : '\u4e2d');
+        String[] strings = { " gr\u00fc\u00dfe ", sb.toString() };
+        File in = tempFile(".txt");
+        try (FileWriter w = new FileWriter(in)) {
+            for (int i = 0; i < strings.length; i++) w.write(i + "," + strings[i] + "," + i + "\n");
+        }
+        File out = tempFile(".dat");
+        assertEquals(strings.length, HeapFileEncoder.convert(in, out, BufferPool.getPageSize(), 3, TYPES, ',', 2, 7));
+        ByteBuffer page = ByteBuffer.wrap(TestUtil.readFileBytes(out.getAbsolutePath()));
+
+        int nrecbytes = 4 + Type.STRING_TYPE.getLen() + 4;
+        int nrecords = (BufferPool.getPageSize() * 8) / (nrecbytes * 8 + 1);
+        int offset = (nrecords + 7) / 8;
+        for (String s : strings) {
+            String expected = s.trim();
+            if (expected.length() > Type.STRING_LEN) expected = expected.substring(0, Type.STRING_LEN);
+            assertEquals(expected.length(), page.getInt(offset + 4));
+            for (int i = 0; i < Type.STRING_LEN; i++) {
+                byte b = i < expected.length() ? (byte) expected.charAt(i) : 0;
+                assertEquals(b, page.get(offset + 8 + i));
+            }
+            offset += nrecbytes;
+        }
+    }
+
+    /**
+     * An empty input still gives one empty page.
+     */
+    @Test public void emptyInput() throws Exception {
+        File in = tempFile(".txt");
+        File out = tempFile(".dat");
+        assertEquals(0, HeapFileEncoder.convert(in, out, BufferPool.getPageSize(), 3, TYPES, ',', 2));
+        assertEquals(BufferPool.getPageSize(), out.length());
+    }
+
+    /**
+     * An integer field that does not parse is stored as 0, leaves the rest
+     * of its row in place and is reported to the listener, whatever the
+     * number of threads.
+     */
+    @Test public void badIntFields() throws Exception {
+        File in = tempFile(".txt");
+        try (FileWriter w = new FileWriter(in)) {
+            for (int i = 0; i < 100; i++) {
+                if (i == 10) w.write("x10,s10,-10\n");
+                else if (i == 70) w.write("70,s70,99999999999\n");
+                else w.write(i + ",s" + i + "," + (-i) + "\n");
+            }
+        }
+        File serial = tempFile(".dat");
+        List<String> expected = Arrays.asList("10:0:x10", "70:2:99999999999");
+        assertEquals(100, HeapFileEncoder.convert(in, serial, BufferPool.getPageSize(), 3, TYPES, ',', 1));
+        for (int threads : new int[] { 1, 3 }) {
+            File out = tempFile(".dat");
+            BadFields bad = new BadFields();
+            assertEquals(100, HeapFileEncoder.convert(in, out, BufferPool.getPageSize(), 3, TYPES, ',', threads, 16, bad));
+            assertEquals(expected, bad);
+            assertArrayEquals(TestUtil.readFileBytes(serial.getAbsolutePath()), TestUtil.readFileBytes(out.getAbsolutePath()));
+        }
+
+        HeapFile hf = new HeapFile(serial, new TupleDesc(TYPES));
+        Database.getCatalog().addTable(hf, "bad");
+        DbFileIterator it = hf.iterator(new TransactionId());
+        it.open();
+        for (int i = 0; it.hasNext(); i++) {
+            Tuple t = it.next();
+            assertEquals(new IntField(i == 10 ? 0 : i), t.getField(0));
+            assertTrue(t.getField(1).compare(Predicate.Op.EQUALS, new StringField("s" + i, Type.STRING_LEN)));
+            assertEquals(new IntField(i == 70 ? 0 : -i), t.getField(2));
+        }
+        it.close();
+    }
+
+    // the bad fields reported, as row:field:text
+    private static class BadFields extends ArrayList<String> implements HeapFileEncoder.RecordListener {
+        public void record(ByteBuffer records, int offset) {
+        }
+
+        public void badField(long row, int field, String text) {
+            add(row + ":" + field + ":" + text);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileEncoderTest.class);
+    }
+}
@@ -7,12 +7,17 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -90,6 +95,124 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Pages read concurrently through the shared channel match the pages
+     * read one at a time, also after the channel has been closed.
+     */
+    @Test public void concurrentReads() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, null);
+        int numPages = hf.numPages();
+        byte[][] expected = new byte[numPages][];
+        for (int i = 0; i < numPages; i ++ ) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            expected[i] = Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY).getPageData();
+        }
+        hf.close();
+
+        Thread[] readers = new Thread[4];
+        boolean[] ok = new boolean[readers.length];
+        for (int r = 0; r < readers.length; r ++ ) {
+            final int reader = r;
+            readers[r] = new Thread(() -> {
+                boolean same = true;
+                for (int n = 0; n < 5; n ++ ) {
+                    for (int i = numPages - 1; i >= 0; i -- ) {
+                        byte[] data = hf.readPage(new HeapPageId(hf.getId(), i)).getPageData();
+                        same &= Arrays.equals(expected[i], data);
+                    }
+                }
+                ok[reader] = same;
+            });
+            readers[r].start();
+        }
+        for (int r = 0; r < readers.length; r ++ ) {
+            readers[r].join();
+            assertTrue(ok[r]);
+        }
+    }
+
+    /**
+     * Slots freed by a delete are reused by later inserts, also by another
+     * HeapFile over the same file, instead of growing the file.
+     */
+    @Test public void reuseFreedSlots() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Tuple victim = it.next();
+        it.close();
+        Database.getBufferPool().deleteTuple(tid, victim);
+        Database.getBufferPool().transactionComplete(tid);
+
+        HeapFile reopened = Utility.openHeapFile(2, hf.getFile());
+        tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(42, 2);
+        Database.getBufferPool().insertTuple(tid, reopened.getId(), t);
+        assertEquals(victim.getRecordId().getPageId(), t.getRecordId().getPageId());
+        assertEquals(3, reopened.numPages());
+    }
+
+    /**
+     * The file grows by whole extents while numPages() counts the pages in
+     * use, also for another HeapFile opened over the same file.
+     */
+    @Test public void growInExtents() throws Exception {
+        for (int i = 0; i < 504 * 3 + 1; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(4, empty.numPages());
+        assertEquals(HeapFile.DEFAULT_EXTENT_SIZE, empty.getFile().length());
+
+        HeapFile reopened = Utility.openHeapFile(2, empty.getFile());
+        assertEquals(4, reopened.numPages());
+
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < 504 * 3 + 1; i ++ ) tuples.add(Arrays.asList(i, i));
+        tid = new TransactionId();
+        SystemTestUtil.matchTuples(reopened, tid, tuples);
+    }
+
+    /**
+     * A table re-encoded to the same length as its preallocated file counts
+     * the pages of the new contents, whether or not the free-space map of
+     * the old contents is still around.
+     */
+    @Test public void reencodeOverTable() throws Exception {
+        for (int i = 0; i < 504 * 2; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        assertEquals(2, empty.numPages());
+        File file = empty.getFile();
+        File fsm = FreeSpaceMap.fileFor(file);
+        byte[] sidecar = Files.readAllBytes(fsm.toPath());
+
+        // as many rows as fill the extent
+        int pages = HeapFile.DEFAULT_EXTENT_SIZE / BufferPool.getPageSize();
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < 504 * pages; i ++ ) tuples.add(Arrays.asList(i, -i));
+        HeapFileEncoder.convert(tuples, file, BufferPool.getPageSize(), 2);
+        assertEquals(HeapFile.DEFAULT_EXTENT_SIZE, file.length());
+        assertFalse(fsm.exists());
+        // the pool still holds pages of the old contents
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapFile reopened = Utility.openHeapFile(2, file);
+        assertEquals(pages, reopened.numPages());
+        tid = new TransactionId();
+        SystemTestUtil.matchTuples(reopened, tid, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+
+        // a sidecar of the old contents is not believed
+        reopened.close();
+        Files.write(fsm.toPath(), sidecar);
+        reopened = Utility.openHeapFile(2, file);
+        assertEquals(pages, reopened.numPages());
+        tid = new TransactionId();
+        SystemTestUtil.matchTuples(reopened, tid, tuples);
+    }
+
     /**
      * JUnit suite target
      */
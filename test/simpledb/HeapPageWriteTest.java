@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -132,6 +133,42 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * A tuple read from the page keeps its values after its slot has been
+     * deleted and reused, even if its fields were never looked at before.
+     */
+    @Test public void deletedTupleKeepsValues() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple first = page.iterator().next();
+        int slot = first.getRecordId().getTupleNumber();
+        page.deleteTuple(first);
+
+        // the freed slot is the first empty one
+        Tuple addition = Utility.getHeapTuple(-7, 2);
+        page.insertTuple(addition);
+        assertEquals(slot, addition.getRecordId().getTupleNumber());
+
+        assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(HeapPageReadTest.EXAMPLE_VALUES[0]), first));
+        assertTrue(TestUtil.compareTuples(addition, page.iterator().next()));
+    }
+
+    /**
+     * Unit test for HeapPage.getBeforeImage() and HeapPage.setBeforeImage()
+     */
+    @Test public void beforeImage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] loaded = page.getPageData();
+        assertArrayEquals(loaded, page.getBeforeImage().getPageData());
+
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        page.insertTuple(Utility.getHeapTuple(2, 2));
+        assertArrayEquals(loaded, page.getBeforeImage().getPageData());
+
+        page.setBeforeImage();
+        assertArrayEquals(page.getPageData(), page.getBeforeImage().getPageData());
+        assertFalse(Arrays.equals(loaded, page.getBeforeImage().getPageData()));
+    }
+
     /**
      * JUnit suite target
      */
@@ -114,6 +114,48 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for Join.getNext() one outer tuple at a time: the results come
+   * in outer, then inner relation order
+   */
+  @Test public void tupleAtATimeOrder() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    Join op = new Join(pred, scan1, scan2, 0);
+    op.open();
+    gtJoin.open();
+    TestUtil.compareDbIterators(gtJoin, op);
+  }
+
+  /**
+   * Unit test for Join.getNext() with blocks of two outer tuples: every
+   * block sees the whole inner relation, and within a block the results
+   * come in inner relation order
+   */
+  @Test public void blockOrder() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    Join op = new Join(pred, scan1, scan2, 2 * Utility.getTupleDesc(width1).getSize());
+    OpIterator expected = TestUtil.createTupleList(width1 + width2,
+        new int[] {
+                    3, 4, 1, 2, 3, // block of 1 and 3
+                    3, 4, 2, 3, 4,
+                    5, 6, 1, 2, 3, // block of 5 and 7
+                    7, 8, 1, 2, 3,
+                    5, 6, 2, 3, 4,
+                    7, 8, 2, 3, 4,
+                    5, 6, 3, 4, 5,
+                    7, 8, 3, 4, 5,
+                    5, 6, 4, 5, 6,
+                    7, 8, 4, 5, 6,
+                    7, 8, 5, 6, 7 });
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+  }
+
   /**
    * JUnit suite target
    */
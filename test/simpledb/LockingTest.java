@@ -3,12 +3,15 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.BufferPool;
+import simpledb.storage.HeapPage;
 import simpledb.storage.HeapPageId;
 import simpledb.storage.PageId;
 import simpledb.transaction.TransactionId;
@@ -193,6 +196,92 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A reader that asks for a page after a writer started waiting for it
+   * waits behind the writer, so a stream of readers cannot starve writers.
+   */
+  @Test public void readerQueuesBehindWriter() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    TestUtil.LockGrabber reader = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_ONLY);
+    reader.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired());
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid1);
+    writer.join(10 * TIMEOUT);
+    assertTrue(writer.acquired());
+    Thread.sleep(TIMEOUT);
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid2);
+    reader.join(10 * TIMEOUT);
+    assertTrue(reader.acquired());
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * Past the escalation threshold a reader's page locks become a shared
+   * lock on the table, which covers its other pages and keeps writers out
+   * of the whole table but not other readers.
+   */
+  @Test public void escalatesToTableLock() throws Exception {
+    PageId p2 = new HeapPageId(empty.getId(), 2);
+    bp.setLockEscalationThreshold(1);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    assertEquals(0, bp.getLockStats().getEscalations());
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(1, bp.getLockStats().getEscalations());
+    assertTrue(bp.holdsLock(tid1, p2));
+
+    bp.getPage(tid2, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p2, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired());
+
+    bp.transactionComplete(tid1);
+    writer.join(10 * TIMEOUT);
+    assertTrue(writer.acquired());
+    bp.transactionComplete(tid2);
+  }
+
+  /**
+   * An insert that finds a page full gives back the lock it took to look
+   * at it, even when a table lock covers reading the page.
+   */
+  @Test public void fullPageLockReleasedUnderTableLock() throws Exception {
+    // fill the last page, then make the free-space map think it has room
+    PageId p2 = new HeapPageId(empty.getId(), 2);
+    TransactionId tid = new TransactionId();
+    HeapPage page = (HeapPage) bp.getPage(tid, p2, Permissions.READ_WRITE);
+    for (int i = 0; page.getNumEmptySlots() > 0; ++i) {
+      page.insertTuple(Utility.getHeapTuple(i, 2));
+    }
+    page.markDirty(true, tid);
+    bp.transactionComplete(tid);
+    empty.getFreeSpaceMap().setFree(2, true);
+
+    bp.setLockEscalationThreshold(1);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(1, bp.getLockStats().getEscalations());
+    empty.insertTuple(tid1, Utility.getHeapTuple(0, 2));
+    assertEquals(4, empty.numPages());
+
+    TestUtil.LockGrabber reader = new TestUtil.LockGrabber(tid2, p2, Permissions.READ_ONLY);
+    reader.start();
+    reader.join(10 * TIMEOUT);
+    assertTrue(reader.acquired());
+    bp.transactionComplete(tid1);
+    bp.transactionComplete(tid2);
+  }
+
   /**
    * JUnit suite target
    */
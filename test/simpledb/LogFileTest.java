@@ -0,0 +1,177 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+    private static File tempFile(String suffix) throws Exception {
+        File f = File.createTempFile("logfile", suffix);
+        f.deleteOnExit();
+        FreeSpaceMap.fileFor(f).deleteOnExit();
+        return f;
+    }
+
+    // a directory for a log and its segments, deleted after the test
+    private static File tempDir() throws Exception {
+        File dir = Files.createTempDirectory("logfile").toFile();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    // the segment files of a log, oldest first
+    private static List<File> segments(File log) {
+        List<File> segments = new ArrayList<>();
+        File[] files = log.getAbsoluteFile().getParentFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().startsWith(log.getName() + ".")) {
+                    f.deleteOnExit();
+                    segments.add(f);
+                }
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    // the number of bytes in the segments of a log
+    private static long length(File log) {
+        long length = 0;
+        for (File f : segments(log)) length += f.length();
+        return length;
+    }
+
+    private static void logTransaction(LogFile log, HeapPageId pid, int n) throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage after = new HeapPage(pid, HeapPage.createEmptyPageData());
+        for (int t = 0; t <= n % 10; t++) {
+            after.insertTuple(Utility.getHeapTuple(new int[] { pid.getPageNumber(), n }));
+        }
+        log.logWrite(tid, before, after);
+        log.logCommit(tid);
+    }
+
+    /**
+     * Records appended by many threads at once all end up in the file, whole
+     * and in order, even when they wrap around the log buffer many times:
+     * recovering the log afterwards neither drops a torn tail nor rolls
+     * anything back.  Small segments make records span segment files.
+     */
+    @Test public void concurrentAppends() throws Exception {
+        int threads = 8;
+        int transactions = 1000;
+        HeapFile table = Utility.createEmptyHeapFile(tempFile(".dat").getAbsolutePath(), 2);
+        File logFile = new File(tempDir(), "log");
+        LogFile log = new LogFile(logFile, 64 * 1024);
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final int pageNo = i;
+            Thread worker = new Thread(() -> {
+                try {
+                    HeapPageId pid = new HeapPageId(table.getId(), pageNo);
+                    for (int n = 0; n < transactions; n++) {
+                        logTransaction(log, pid, n);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) worker.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        assertTrue(log.getGroupForces() <= threads * transactions);
+
+        long length = length(logFile);
+        assertTrue(length > LogFile.BUFFER_SIZE);
+        new LogFile(logFile, 64 * 1024).recover();
+        assertEquals(length, length(logFile));
+    }
+
+    /**
+     * A checkpoint deletes the segments before the first record recovery
+     * may need, and no others: a transaction running at the checkpoint keeps
+     * the segments from its BEGIN record on.  The rest of the log still
+     * recovers.
+     */
+    @Test public void checkpointDeletesSegments() throws Exception {
+        HeapFile table = Utility.createEmptyHeapFile(tempFile(".dat").getAbsolutePath(), 2);
+        HeapPageId pid = new HeapPageId(table.getId(), 0);
+        File logFile = new File(tempDir(), "log");
+        LogFile log = new LogFile(logFile, 4096);
+
+        TransactionId running = new TransactionId();
+        log.logXactionBegin(running);
+        for (int n = 0; n < 100; n++) logTransaction(log, pid, n);
+        int before = segments(logFile).size();
+        assertTrue(before > 3);
+        log.logCheckpoint();
+        assertEquals(before, segments(logFile).size());
+        assertEquals("log.0000000000000000", segments(logFile).get(0).getName());
+
+        log.logCommit(running);
+        for (int n = 0; n < 10; n++) logTransaction(log, pid, n);
+        log.logCheckpoint();
+        List<File> after = segments(logFile);
+        assertTrue(after.size() < before);
+        long first = Long.parseLong(after.get(0).getName().substring(4), 16);
+        assertTrue(first > 0);
+        assertEquals(0, first % 4096);
+
+        long length = length(logFile);
+        new LogFile(logFile, 4096).recover();
+        assertEquals(length, length(logFile));
+    }
+
+    /**
+     * Waiting for an LSN that is not published yet does not make the
+     * flusher force the log over and over while there is nothing new.
+     */
+    @Test public void awaitUnpublishedLsnDoesNotSpin() throws Exception {
+        HeapFile table = Utility.createEmptyHeapFile(tempFile(".dat").getAbsolutePath(), 2);
+        LogFile log = new LogFile(new File(tempDir(), "log"));
+        logTransaction(log, new HeapPageId(table.getId(), 0), 0);
+        long forces = log.getGroupForces();
+
+        long lsn = log.getEndLsn() + 1;
+        Thread waiter = new Thread(() -> {
+            try {
+                log.awaitDurable(lsn);
+            } catch (java.io.IOException e) {
+                // interrupted below
+            }
+        });
+        waiter.start();
+        Thread.sleep(300);
+        assertTrue(log.getGroupForces() <= forces + 1);
+        waiter.interrupt();
+        waiter.join();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
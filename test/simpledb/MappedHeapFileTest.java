@@ -0,0 +1,107 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MappedHeapFileTest extends SimpleDbTestBase {
+
+    private MappedHeapFile mapped;
+
+    @After public void tearDown() throws Exception {
+        if (mapped != null) mapped.close();
+    }
+
+    private MappedHeapFile open(HeapFile hf) {
+        mapped = new MappedHeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(mapped, SystemTestUtil.getUUID());
+        return mapped;
+    }
+
+    /**
+     * A MappedHeapFile added to the catalog scans the same tuples as the
+     * HeapFile it was written with.
+     */
+    @Test public void scan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 2000, null, tuples);
+        SystemTestUtil.matchTuples(open(hf), tuples);
+    }
+
+    /**
+     * Pages read from the mapping match the pages read by HeapFile.
+     */
+    @Test public void readPage() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        open(hf);
+        for (int i = 0; i < hf.numPages(); i ++ ) {
+            HeapPageId pid = new HeapPageId(mapped.getId(), i);
+            assertArrayEquals(hf.readPage(pid).getPageData(), mapped.readPage(pid).getPageData());
+        }
+    }
+
+    /**
+     * Pages written after the file was mapped are visible, including pages
+     * that grow the file.
+     */
+    @Test public void growth() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        open(hf);
+        HeapPageId pid = new HeapPageId(mapped.getId(), 1);
+        // page 0 is mapped first, page 1 lies beyond the end of the file
+        mapped.readPage(new HeapPageId(mapped.getId(), 0));
+        assertEquals(504, ((HeapPage) mapped.readPage(pid)).getNumEmptySlots());
+
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        mapped.writePage(page);
+        assertEquals(2, mapped.numPages());
+        assertEquals(503, ((HeapPage) mapped.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * A tuple read from a mapped page keeps its values when a change to its
+     * slot is written to the file afterwards.
+     */
+    @Test public void tupleOutlivesWrite() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        open(hf);
+        HeapPageId pid = new HeapPageId(mapped.getId(), 0);
+        Tuple expected = ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0))).iterator().next();
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        Tuple held = page.iterator().next();
+
+        // the first slot gets a tuple that differs in every field
+        HeapPage changed = new HeapPage(pid, page.getPageData());
+        changed.deleteTuple(changed.iterator().next());
+        Tuple other = new Tuple(hf.getTupleDesc());
+        for (int i = 0; i < 2; i++) {
+            other.setField(i, new IntField(((IntField) expected.getField(i)).getValue() + 1));
+        }
+        changed.insertTuple(other);
+        assertEquals(held.getRecordId(), other.getRecordId());
+        mapped.writePage(changed);
+
+        assertEquals(other.getField(0), ((HeapPage) mapped.readPage(pid)).iterator().next().getField(0));
+        for (int i = 0; i < 2; i++) assertEquals(expected.getField(i), held.getField(i));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedHeapFileTest.class);
+    }
+}
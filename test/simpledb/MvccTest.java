@@ -0,0 +1,202 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.Iterator;
+
+public class MvccTest extends TestUtil.CreateHeapFile {
+  private PageId p0;
+  private TransactionId tid1, tid2;
+  private BufferPool bp;
+
+  /**
+   * Set up a heap file with three full pages and a buffer pool in MVCC mode.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 1025; ++i) {
+      empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+    }
+    assertEquals(3, empty.numPages());
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    for (int i = 0; i < 3; i++) {
+      bp.getPage(tid, new HeapPageId(empty.getId(), i), Permissions.READ_WRITE).markDirty(true, tid);
+    }
+    bp.flushAllPages();
+
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    bp.setMvcc(true);
+    this.tid1 = new TransactionId();
+    this.tid2 = new TransactionId();
+  }
+
+  @After public void tearDown() {
+    bp.setMvcc(false);
+  }
+
+  private static int count(Iterator<Tuple> it) {
+    int n = 0;
+    for (; it.hasNext(); it.next()) n++;
+    return n;
+  }
+
+  private int countSnapshot(TransactionId tid, PageId pid) throws Exception {
+    return count(((HeapPage) bp.getSnapshotPage(tid, pid)).iterator());
+  }
+
+  private int scan(TransactionId tid) throws Exception {
+    DbFileIterator it = empty.iterator(tid);
+    it.open();
+    int n = 0;
+    for (; it.hasNext(); it.next()) n++;
+    it.close();
+    return n;
+  }
+
+  // deletes the first tuple of a page on behalf of tid
+  private void deleteFirst(TransactionId tid, PageId pid) throws Exception {
+    HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+    page.deleteTuple(page.iterator().next());
+    page.markDirty(true, tid);
+  }
+
+  /**
+   * A snapshot read takes no lock, does not wait for a writer, and sees
+   * neither its uncommitted change nor its commit after the snapshot.
+   */
+  @Test(timeout = 10000) public void snapshotIgnoresConcurrentWriter() throws Exception {
+    assertEquals(504, countSnapshot(tid2, p0));
+    deleteFirst(tid1, p0);
+    assertEquals(504, countSnapshot(tid2, p0));
+    assertFalse(bp.holdsLock(tid2, p0));
+    assertEquals(1025, scan(tid2));
+
+    bp.transactionComplete(tid1);
+    assertEquals(504, countSnapshot(tid2, p0));
+    assertEquals(1025, scan(tid2));
+
+    TransactionId tid3 = new TransactionId();
+    assertEquals(503, countSnapshot(tid3, p0));
+    assertEquals(1024, scan(tid3));
+    bp.transactionComplete(tid2);
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * A transaction sees its own changes.
+   */
+  @Test public void writerSeesOwnChanges() throws Exception {
+    assertEquals(1025, scan(tid1));
+    deleteFirst(tid1, p0);
+    assertEquals(503, countSnapshot(tid1, p0));
+    assertEquals(1024, scan(tid1));
+    bp.transactionComplete(tid1);
+  }
+
+  /**
+   * A writer that changes a page another transaction changed and committed
+   * after its snapshot aborts.
+   */
+  @Test public void firstCommitterWins() throws Exception {
+    assertEquals(504, countSnapshot(tid2, p0));
+    deleteFirst(tid1, p0);
+    bp.transactionComplete(tid1);
+    try {
+      bp.getPage(tid2, p0, Permissions.READ_WRITE);
+      fail("expected TransactionAbortedException");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertEquals(1, bp.getVersionStats().getConflicts());
+    bp.transactionComplete(tid2, false);
+
+    // without a snapshot there is nothing to conflict with
+    TransactionId tid3 = new TransactionId();
+    deleteFirst(tid3, p0);
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * A transaction that locks a page for writing and commits without
+   * changing it adds no version, so later writers do not conflict with it.
+   */
+  @Test public void unchangedPageIsNotPublished() throws Exception {
+    assertEquals(504, countSnapshot(tid2, p0));
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.transactionComplete(tid1);
+    assertEquals(1, bp.getVersionStats().getVersions());
+
+    deleteFirst(tid2, p0);
+    assertEquals(0, bp.getVersionStats().getConflicts());
+    bp.transactionComplete(tid2);
+  }
+
+  /**
+   * Versions stay while a snapshot may need them and are dropped after.
+   */
+  @Test public void versionsAreCollected() throws Exception {
+    assertEquals(504, countSnapshot(tid2, p0));
+    deleteFirst(tid1, p0);
+    bp.transactionComplete(tid1);
+    assertEquals(2, bp.getVersionStats().getVersions());
+
+    bp.collectVersions();
+    assertEquals(0, bp.getVersionStats().getCollected());
+    assertEquals(504, countSnapshot(tid2, p0));
+
+    bp.transactionComplete(tid2);
+    bp.collectVersions();
+    assertEquals(2, bp.getVersionStats().getCollected());
+    TransactionId tid3 = new TransactionId();
+    assertEquals(503, countSnapshot(tid3, p0));
+    assertTrue(bp.getVersionStats().getSnapshots() >= 2);
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * Snapshot reads of a page nobody changes share one committed copy, which
+   * a writer that comes later leaves alone.
+   */
+  @Test public void snapshotReadsShareCopy() throws Exception {
+    HeapPage page = (HeapPage) bp.getSnapshotPage(tid2, p0);
+    TransactionId tid3 = new TransactionId();
+    assertSame(page, bp.getSnapshotPage(tid3, p0));
+    assertEquals(1, bp.getVersionStats().getVersions());
+
+    deleteFirst(tid1, p0);
+    bp.transactionComplete(tid1);
+    assertEquals(504, count(page.iterator()));
+    assertEquals(2, bp.getVersionStats().getVersions());
+    bp.transactionComplete(tid2);
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(MvccTest.class);
+  }
+}
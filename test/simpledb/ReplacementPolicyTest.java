@@ -0,0 +1,135 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static HeapPageId pid(int pgNo) {
+        return new HeapPageId(-1, pgNo);
+    }
+
+    /**
+     * Unit test for LruPolicy: the least recently used page goes first.
+     */
+    @Test public void lru() {
+        ReplacementPolicy policy = ReplacementPolicy.forName(ReplacementPolicy.LRU);
+        for (int i = 0; i < 3; i ++ ) policy.pageAdded(pid(i));
+        policy.pageAccessed(pid(0));
+        assertEquals(pid(1), policy.chooseVictim(p -> true));
+        policy.pageRemoved(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(p -> true));
+        assertEquals(pid(0), policy.chooseVictim(p -> !p.equals(pid(2))));
+    }
+
+    /**
+     * Unit test for ClockPolicy: referenced pages get a second chance.
+     */
+    @Test public void clock() {
+        ReplacementPolicy policy = ReplacementPolicy.forName(ReplacementPolicy.CLOCK);
+        for (int i = 0; i < 3; i ++ ) policy.pageAdded(pid(i));
+        // all reference bits are set, the first sweep clears them
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+        policy.pageRemoved(pid(0));
+        policy.pageAccessed(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(p -> true));
+        policy.pageRemoved(pid(2));
+        policy.pageAdded(pid(3));
+        assertEquals(pid(1), policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * Unit test for LruKPolicy: pages referenced once go before hot pages.
+     */
+    @Test public void lruK() {
+        ReplacementPolicy policy = ReplacementPolicy.forName(ReplacementPolicy.LRU_K);
+        policy.pageAdded(pid(0));
+        policy.pageAccessed(pid(0));
+        // a scan touches every following page exactly once
+        for (int i = 1; i < 5; i ++ ) policy.pageAdded(pid(i));
+        assertEquals(pid(1), policy.chooseVictim(p -> true));
+        for (int i = 1; i < 5; i ++ ) policy.pageRemoved(pid(i));
+        policy.pageAdded(pid(5));
+        assertEquals(pid(5), policy.chooseVictim(p -> true));
+        assertEquals(pid(0), policy.chooseVictim(p -> !p.equals(pid(5))));
+    }
+
+    /**
+     * Unit test for TwoQPolicy: only pages that come back are promoted.
+     */
+    @Test public void twoQ() {
+        ReplacementPolicy policy = ReplacementPolicy.forName(ReplacementPolicy.TWO_Q);
+        policy.pageAdded(pid(0));
+        policy.pageEvicted(pid(0));
+        // pid(0) comes back from the ghost queue straight into Am
+        policy.pageAdded(pid(0));
+        for (int i = 1; i < 5; i ++ ) policy.pageAdded(pid(i));
+        for (int i = 1; i < 5; i ++ ) {
+            PageId victim = policy.chooseVictim(p -> true);
+            assertEquals(pid(i), victim);
+            policy.pageRemoved(victim);
+        }
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * Unit test for TwoQPolicy: a discarded page was never evicted, so it is
+     * not promoted when it comes back.
+     */
+    @Test public void twoQDiscard() {
+        ReplacementPolicy policy = ReplacementPolicy.forName(ReplacementPolicy.TWO_Q);
+        policy.pageAdded(pid(0));
+        policy.pageRemoved(pid(0));
+        policy.pageAdded(pid(0));
+        policy.pageAdded(pid(1));
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * Unit test for LruKPolicy: the order follows the k-th reference as
+     * pages are hit again.
+     */
+    @Test public void lruKOrder() {
+        ReplacementPolicy policy = ReplacementPolicy.forName(ReplacementPolicy.LRU_K);
+        for (int i = 0; i < 3; i ++ ) policy.pageAdded(pid(i));
+        for (int i = 0; i < 3; i ++ ) policy.pageAccessed(pid(i));
+        // the second most recent references are 1, 2, 3
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+        policy.pageAccessed(pid(0));
+        assertEquals(pid(1), policy.chooseVictim(p -> true));
+        policy.pageRemoved(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(p -> true));
+        assertEquals(pid(0), policy.chooseVictim(p -> !p.equals(pid(2))));
+    }
+
+    /**
+     * No victim is chosen when nothing may be evicted.
+     */
+    @Test public void noEvictablePage() {
+        String[] names = { ReplacementPolicy.LRU, ReplacementPolicy.CLOCK,
+                ReplacementPolicy.LRU_K, ReplacementPolicy.TWO_Q };
+        for (String name : names) {
+            ReplacementPolicy policy = ReplacementPolicy.forName(name);
+            for (int i = 0; i < 3; i ++ ) policy.pageAdded(pid(i));
+            assertNull(name, policy.chooseVictim(p -> false));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownPolicy() {
+        ReplacementPolicy.forName("mru");
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
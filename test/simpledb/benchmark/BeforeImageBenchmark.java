@@ -0,0 +1,65 @@
+package simpledb.benchmark;
+
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.Iterator;
+
+/**
+ * Measures the cost of loading and scanning pages of a two column int table
+ * (the schema of HeapFileReadTest) straight from its HeapFile, with and
+ * without taking a before image of every page as it is loaded.  HeapPage
+ * used to copy its contents into a before image in the constructor; now the
+ * copy is only taken when a page is first modified, so read-only scans run
+ * at the "lazy" rate.
+ * <p>
+ * Usage: ant runbenchmark -Dbenchmark=BeforeImageBenchmark
+ *            [-Dbenchmark.args="pages rounds"]
+ */
+public class BeforeImageBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        int tuplesPerPage = (BufferPool.getPageSize() * 8) / (8 * 8 + 1);
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, pages * tuplesPerPage, null, null);
+
+        // warm up the JIT and the OS page cache
+        scan(f, true);
+        scan(f, false);
+
+        System.out.println("mode\tpages/s");
+        for (boolean eager : new boolean[] { true, false }) {
+            long begin = System.nanoTime();
+            long n = 0;
+            for (int i = 0; i < rounds; i ++ ) n += scan(f, eager);
+            double rate = n / ((System.nanoTime() - begin) / 1e9);
+            System.out.printf("%s\t%.0f%n", eager ? "eager" : "lazy", rate);
+        }
+    }
+
+    /**
+     * Loads every page of f and filters its tuples on the first field,
+     * copying each page as a before image first if eager is set.
+     *
+     * @return the number of pages loaded
+     */
+    private static int scan(HeapFile f, boolean eager) {
+        long matches = 0;
+        for (int i = 0; i < f.numPages(); i ++ ) {
+            HeapPage page = (HeapPage) f.readPage(new HeapPageId(f.getId(), i));
+            if (eager) page.getPageData();
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                if (it.next().getField(0).hashCode() % 100 == 0) matches ++;
+            }
+        }
+        if (matches < 0) throw new IllegalStateException();
+        return f.numPages();
+    }
+}
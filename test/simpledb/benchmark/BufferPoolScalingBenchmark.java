@@ -0,0 +1,87 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures BufferPool.getPage() throughput on a fully cached table for 1 to
+ * N reader threads, each running its own read-only transaction over random
+ * pages.  With the hash-striped frame table, hits on different partitions
+ * proceed in parallel, so throughput should grow with the thread count.
+ * <p>
+ * Usage: ant runbenchmark -Dbenchmark=BufferPoolScalingBenchmark
+ *            [-Dbenchmark.args="maxThreads pages seconds"]
+ */
+public class BufferPoolScalingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 2;
+
+        int tuplesPerPage = (BufferPool.getPageSize() * 8) / (8 * 8 + 1);
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, pages * tuplesPerPage, null, null);
+        Database.resetBufferPool(pages);
+        int tableId = f.getId();
+
+        // warm up: bring every page in
+        TransactionId warm = new TransactionId();
+        for (int i = 0; i < f.numPages(); i ++ ) {
+            Database.getBufferPool().getPage(warm, new HeapPageId(tableId, i), Permissions.READ_ONLY);
+        }
+        Database.getBufferPool().transactionComplete(warm);
+
+        System.out.println("threads\tgetPage/s\tspeedup");
+        double base = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double rate = run(threads, tableId, f.numPages(), seconds);
+            if (threads == 1) base = rate;
+            System.out.printf("%d\t%.0f\t%.2f%n", threads, rate, rate / base);
+            if (threads < maxThreads && threads * 2 > maxThreads) threads = maxThreads / 2;
+        }
+    }
+
+    private static double run(int threads, int tableId, int numPages, double seconds) throws InterruptedException {
+        AtomicLong ops = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i ++ ) {
+            final int seed = i;
+            workers[i] = new Thread(() -> {
+                Random rand = new Random(seed);
+                TransactionId tid = new TransactionId();
+                long n = 0;
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline) {
+                        for (int j = 0; j < 1000; j ++ ) {
+                            Database.getBufferPool().getPage(tid,
+                                    new HeapPageId(tableId, rand.nextInt(numPages)), Permissions.READ_ONLY);
+                        }
+                        n += 1000;
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    Database.getBufferPool().transactionComplete(tid);
+                }
+                ops.addAndGet(n);
+            });
+            workers[i].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread t : workers) t.join();
+        return ops.get() / ((System.nanoTime() - begin) / 1e9);
+    }
+}
@@ -0,0 +1,104 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.FreeSpaceMap;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures commit throughput and latency for 1 to N threads, each running
+ * small update transactions (one inserted tuple) against a table of its
+ * own, so that they never wait for each other's locks.  Commits that arrive
+ * together share one force of the log (group commit); the commits/force
+ * column shows how many commits each force served, and log bytes/commit the
+ * size of the update and commit records a transaction appends.
+ * <p>
+ * Usage: ant runbenchmark -Dbenchmark=CommitBenchmark
+ *            [-Dbenchmark.args="maxThreads seconds"]
+ */
+public class CommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+
+        // NO STEAL: every running transaction pins its dirty page
+        Database.resetBufferPool(Math.max(BufferPool.DEFAULT_PAGES, maxThreads * 4));
+        HeapFile[] tables = new HeapFile[maxThreads];
+        for (int i = 0; i < maxThreads; i ++ ) {
+            File f = File.createTempFile("commit", ".dat");
+            f.deleteOnExit();
+            FreeSpaceMap.fileFor(f).deleteOnExit();
+            tables[i] = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        }
+
+        System.out.println("threads\tcommits/s\tavg ms\tp99 ms\tcommits/force\tlog bytes/commit");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run(threads, tables, seconds);
+            if (threads < maxThreads && threads * 2 > maxThreads) threads = maxThreads / 2;
+        }
+    }
+
+    private static void run(int threads, HeapFile[] tables, double seconds) throws InterruptedException {
+        List<long[]> latencies = new ArrayList<>();
+        int[] counts = new int[threads];
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i ++ ) {
+            final int id = i;
+            final long[] lat = new long[1 << 20];
+            latencies.add(lat);
+            workers[i] = new Thread(() -> {
+                int n = 0;
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline && n < lat.length) {
+                        long begin = System.nanoTime();
+                        Transaction t = new Transaction();
+                        t.start();
+                        Database.getBufferPool().insertTuple(t.getId(), tables[id].getId(), Utility.getHeapTuple(n, 2));
+                        t.commit();
+                        lat[n ++ ] = System.nanoTime() - begin;
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                counts[id] = n;
+            });
+            workers[i].start();
+        }
+        long forcesBefore = Database.getLogFile().getGroupForces();
+        long lsnBefore = Database.getLogFile().getEndLsn();
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread t : workers) t.join();
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        long forces = Database.getLogFile().getGroupForces() - forcesBefore;
+        long logBytes = Database.getLogFile().getEndLsn() - lsnBefore;
+
+        int total = 0;
+        for (int n : counts) total += n;
+        long[] all = new long[total];
+        int k = 0;
+        for (int i = 0; i < threads; i ++ ) {
+            System.arraycopy(latencies.get(i), 0, all, k, counts[i]);
+            k += counts[i];
+        }
+        Arrays.sort(all);
+        double avg = 0;
+        for (long l : all) avg += l;
+        avg = total == 0 ? 0 : avg / total / 1e6;
+        double p99 = total == 0 ? 0 : all[Math.min(total - 1, (int) (total * 0.99))] / 1e6;
+        System.out.printf("%d\t%.0f\t%.2f\t%.2f\t%.2f\t%.0f%n", threads, total / elapsed, avg, p99,
+                forces == 0 ? 0 : (double) total / forces, total == 0 ? 0 : (double) logBytes / total);
+    }
+}
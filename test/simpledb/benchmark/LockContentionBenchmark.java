@@ -0,0 +1,115 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LockStats;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the deadlock scenarios of DeadlockTest over and over: pairs of
+ * threads each run two transactions that take a first lock, then request a
+ * write lock the other one holds (or, for the upgrade, the same page both
+ * read).  One of them has to abort before the other can go on.  Each
+ * scenario runs once with deadlock detection and once without it, ending
+ * deadlocks with the 1 second lock timeout the lock manager used to have;
+ * rounds/s and ms/round show how long a deadlock stalls both transactions.
+ * <p>
+ * Usage: ant runbenchmark -Dbenchmark=LockContentionBenchmark
+ *            [-Dbenchmark.args="pairs seconds"]
+ */
+public class LockContentionBenchmark {
+
+    private static final long TIMEOUT = 1000;
+
+    private enum Scenario {
+        READ_WRITE, WRITE_WRITE, UPGRADE
+    }
+
+    public static void main(String[] args) throws Exception {
+        int pairs = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 3;
+
+        int tuplesPerPage = (BufferPool.getPageSize() * 8) / (8 * 8 + 1);
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2 * pairs * tuplesPerPage, null, null);
+
+        System.out.println("scenario\tmode\trounds/s\tms/round\tdeadlocks\ttimeouts");
+        for (Scenario scenario : Scenario.values()) {
+            for (boolean detect : new boolean[] { true, false }) {
+                BufferPool bp = Database.resetBufferPool(Math.max(BufferPool.DEFAULT_PAGES, 2 * pairs));
+                bp.setDeadlockDetection(detect);
+                bp.setLockTimeout(detect ? 0 : TIMEOUT);
+                long rounds = run(scenario, pairs, f.getId(), seconds);
+                LockStats stats = bp.getLockStats();
+                System.out.printf("%s\t%s\t%.1f\t%.1f\t%d\t%d%n", scenario, detect ? "detection" : "timeout",
+                        rounds / seconds, 1000.0 * seconds * pairs / Math.max(rounds, 1),
+                        stats.getDeadlocks(), stats.getTimeouts());
+            }
+        }
+    }
+
+    private static long run(Scenario scenario, int pairs, int tableId, double seconds) throws InterruptedException {
+        AtomicLong rounds = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        Thread[] workers = new Thread[2 * pairs];
+        for (int i = 0; i < pairs; i ++ ) {
+            PageId[] pids = { new HeapPageId(tableId, 2 * i), new HeapPageId(tableId, 2 * i + 1) };
+            boolean[] stop = new boolean[1];
+            // both threads of a pair start and end each round together
+            CyclicBarrier barrier = new CyclicBarrier(2, () -> stop[0] = System.nanoTime() > deadline);
+            for (int j = 0; j < 2; j ++ ) {
+                final int me = j;
+                workers[2 * i + j] = new Thread(() -> {
+                    try {
+                        start.await();
+                        while (true) {
+                            barrier.await();
+                            if (stop[0]) return;
+                            round(scenario, pids, me, barrier);
+                            if (me == 0) rounds.incrementAndGet();
+                        }
+                    } catch (InterruptedException | BrokenBarrierException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                workers[2 * i + j].start();
+            }
+        }
+        start.countDown();
+        for (Thread t : workers) t.join();
+        return rounds.get();
+    }
+
+    // one of the two transactions of a round
+    private static void round(Scenario scenario, PageId[] pids, int me, CyclicBarrier barrier)
+            throws InterruptedException, BrokenBarrierException {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        PageId first = scenario == Scenario.UPGRADE ? pids[0] : pids[me];
+        PageId second = scenario == Scenario.UPGRADE ? pids[0] : pids[1 - me];
+        Permissions perm = scenario == Scenario.WRITE_WRITE ? Permissions.READ_WRITE : Permissions.READ_ONLY;
+        try {
+            bp.getPage(tid, first, perm);
+            barrier.await();
+            bp.getPage(tid, second, Permissions.READ_WRITE);
+        } catch (TransactionAbortedException e) {
+            // the other transaction gets its lock once this one is gone
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            // nothing was changed, so ending either way only releases locks
+            bp.transactionComplete(tid, false);
+        }
+    }
+}
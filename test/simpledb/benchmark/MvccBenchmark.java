@@ -0,0 +1,102 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs scans of a table next to writers that keep changing it, once with
+ * page locks and once in MVCC mode.  Each scanner runs read-only
+ * transactions that scan the whole table; each writer runs transactions
+ * that move a tuple within a random page and commit.  With locks scans wait
+ * for writers and writers for scans; with MVCC scans read a snapshot and
+ * only writers of the same page wait for each other.
+ * <p>
+ * Usage: ant runbenchmark -Dbenchmark=MvccBenchmark
+ *            [-Dbenchmark.args="scanners writers pages seconds"]
+ */
+public class MvccBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int scanners = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int pages = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        double seconds = args.length > 3 ? Double.parseDouble(args[3]) : 3;
+
+        int tuplesPerPage = (BufferPool.getPageSize() * 8) / (8 * 8 + 1);
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, pages * tuplesPerPage, null, null);
+
+        System.out.println("mode\tscans/s\tcommits/s\taborts");
+        for (boolean mvcc : new boolean[] { false, true }) {
+            BufferPool bp = Database.resetBufferPool(Math.max(BufferPool.DEFAULT_PAGES, 2 * pages));
+            bp.setMvcc(mvcc);
+            AtomicLong scans = new AtomicLong(), commits = new AtomicLong(), aborts = new AtomicLong();
+            run(f, scanners, writers, pages, seconds, scans, commits, aborts);
+            System.out.printf("%s\t%.1f\t%.1f\t%d%n", mvcc ? "mvcc" : "locking",
+                    scans.get() / seconds, commits.get() / seconds, aborts.get());
+            if (mvcc) System.out.println(bp.getVersionStats());
+            bp.setMvcc(false);
+        }
+    }
+
+    private static void run(HeapFile f, int scanners, int writers, int pages, double seconds,
+            AtomicLong scans, AtomicLong commits, AtomicLong aborts) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        Thread[] workers = new Thread[scanners + writers];
+        for (int i = 0; i < workers.length; i ++ ) {
+            boolean scanner = i < scanners;
+            workers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            if (scanner) scan(f, tid);
+                            else write(f, tid, pages);
+                            Database.getBufferPool().transactionComplete(tid);
+                            (scanner ? scans : commits).incrementAndGet();
+                        } catch (TransactionAbortedException e) {
+                            Database.getBufferPool().transactionComplete(tid, false);
+                            aborts.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread t : workers) t.join();
+    }
+
+    private static void scan(HeapFile f, TransactionId tid) throws Exception {
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext()) it.next();
+        it.close();
+    }
+
+    // deletes a tuple of a random page and adds it back
+    private static void write(HeapFile f, TransactionId tid, int pages) throws Exception {
+        HeapPageId pid = new HeapPageId(f.getId(), ThreadLocalRandom.current().nextInt(pages));
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        Tuple t = page.iterator().next();
+        page.deleteTuple(t);
+        page.insertTuple(t);
+        page.markDirty(true, tid);
+    }
+}
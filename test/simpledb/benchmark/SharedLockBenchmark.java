@@ -0,0 +1,68 @@
+package simpledb.benchmark;
+
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LockManager;
+import simpledb.storage.PageId;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures LockManager throughput for shared page locks, the lock traffic of
+ * scans, for 1 to N threads.  Each thread runs read-only transactions that
+ * lock the same small set of hot pages and then release them, so every page
+ * is read-locked by many transactions at once but never write-locked.
+ * <p>
+ * Usage: ant runbenchmark -Dbenchmark=SharedLockBenchmark
+ *            [-Dbenchmark.args="maxThreads pages seconds"]
+ */
+public class SharedLockBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 2;
+
+        PageId[] pids = new PageId[pages];
+        for (int i = 0; i < pages; i ++ ) pids[i] = new HeapPageId(1, i);
+
+        System.out.println("threads\tlocks/s\tspeedup");
+        double base = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double rate = run(new LockManager(), threads, pids, seconds);
+            if (threads == 1) base = rate;
+            System.out.printf("%d\t%.0f\t%.2f%n", threads, rate, rate / base);
+            if (threads < maxThreads && threads * 2 > maxThreads) threads = maxThreads / 2;
+        }
+    }
+
+    private static double run(LockManager lm, int threads, PageId[] pids, double seconds) throws InterruptedException {
+        AtomicLong ops = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i ++ ) {
+            workers[i] = new Thread(() -> {
+                long n = 0;
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline) {
+                        TransactionId tid = new TransactionId();
+                        for (PageId pid : pids) lm.getReadLock(tid, pid);
+                        lm.release(tid);
+                        n += pids.length;
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                ops.addAndGet(n);
+            });
+            workers[i].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread t : workers) t.join();
+        return ops.get() / ((System.nanoTime() - begin) / 1e9);
+    }
+}
@@ -0,0 +1,317 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+
+/**
+ * Tests LogFile.rollback() and LogFile.recover().  A crash is simulated by
+ * resetting the Database, which drops the buffer pool, or by killing a
+ * separate process that runs transactions.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+
+    // reopens the table after a crash; its id is the same as before
+    private static HeapFile reopen(HeapFile f) {
+        return Utility.openHeapFile(2, f.getFile());
+    }
+
+    /** Uncommitted changes that were written to disk before a checkpoint
+     * are rolled back on abort, in the file as well as in the buffer pool.
+     */
+    @Test public void rollbackAfterCheckpoint() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        Database.getBufferPool().flushPages(t.getId());
+        Database.getLogFile().logCheckpoint();
+        t.abort();
+
+        t = new Transaction();
+        t.start();
+        assertFalse(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+
+        Database.reset();
+        f = reopen(f);
+        t = new Transaction();
+        t.start();
+        assertFalse(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /** Recovery undoes the changes of a transaction that was running at
+     * the crash, even if they were written to disk before a checkpoint.
+     */
+    @Test public void undoRunningTransaction() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        Database.getBufferPool().flushPages(t.getId());
+        Database.getLogFile().logCheckpoint();
+
+        Database.reset();
+        f = reopen(f);
+        Database.getLogFile().recover();
+        t = new Transaction();
+        t.start();
+        assertFalse(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /** Recovery installs the changes of a committed transaction whose pages
+     * did not make it to disk.
+     */
+    @Test public void redoCommittedTransaction() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        byte[] before = Files.readAllBytes(f.getFile().toPath());
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        t.commit();
+        // lose the page writes that followed the commit record
+        Files.write(f.getFile().toPath(), before);
+
+        Database.reset();
+        f = reopen(f);
+        Database.getLogFile().recover();
+        t = new Transaction();
+        t.start();
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /** A checkpoint writes no pages, not even those of running transactions. */
+    @Test public void checkpointWritesNoPages() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        byte[] before = Files.readAllBytes(f.getFile().toPath());
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        Database.getLogFile().logCheckpoint();
+        assertArrayEquals(before, Files.readAllBytes(f.getFile().toPath()));
+        t.commit();
+    }
+
+    /** Recovery redoes a committed change the file does not have, even if
+     * it was logged before the last checkpoint: the checkpoint's dirty page
+     * table keeps it from being truncated and skipped.
+     */
+    @Test public void redoUnwrittenPageAfterCheckpoint() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES).setSteal(true);
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        t.commit();
+        // the page cleaner skips pages that are write locked
+        Transaction locker = new Transaction();
+        locker.start();
+        for (int pageNo = 0; pageNo < f.numPages(); pageNo++) {
+            Database.getBufferPool().getPage(locker.getId(), new HeapPageId(f.getId(), pageNo), Permissions.READ_WRITE);
+        }
+        // truncates the log up to the first record of the locker, unless
+        // the dirty page table keeps the committed change
+        Database.getLogFile().logCheckpoint();
+
+        Database.reset();
+        f = reopen(f);
+        Database.getLogFile().recover();
+        t = new Transaction();
+        t.start();
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /** An update is logged as the bytes it changed, not as page images. */
+    @Test public void smallUpdateLogsDelta() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        LogFile log = Database.getLogFile();
+        long begin = log.getEndLsn();
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        t.commit();
+        assertTrue(log.getEndLsn() - begin < BufferPool.getPageSize() / 4);
+
+        // and is redone from those bytes
+        byte[] before = Files.readAllBytes(f.getFile().toPath());
+        t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(new int[] { -6830, 1 }));
+        t.commit();
+        Files.write(f.getFile().toPath(), before);
+        Database.reset();
+        f = reopen(f);
+        Database.getLogFile().recover();
+        Map<Integer, Set<Integer>> found = scan(f);
+        assertTrue(found.containsKey(-6830) && found.get(-6830).contains(1));
+    }
+
+    // number of tuples inserted by transaction n of the workload
+    private static int tuplesOf(int n) {
+        return 1 + n % 5;
+    }
+
+    /**
+     * Workload run by killAtRandomPoints in a separate process: recovers
+     * the table, then runs transactions numbered from args[1] on, each
+     * inserting tuplesOf(n) tuples (n, i), until it is killed.  It
+     * checkpoints in the middle of some transactions and aborts others, and
+     * reports every commit and abort once it returned.  With "steal" as
+     * args[2] it uses a small STEAL/NO-FORCE buffer pool.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 2 && args[2].equals("steal")) {
+            Database.resetBufferPool(4).setSteal(true);
+        }
+        HeapFile f = Utility.openHeapFile(2, new File(args[0]));
+        Database.getLogFile().recover();
+        System.out.println("RECOVERED");
+        for (int n = Integer.parseInt(args[1]); ; n++) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int i = 0; i < tuplesOf(n); i++) {
+                Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(new int[] { n, i }));
+            }
+            if (n % 7 == 0) Database.getLogFile().logCheckpoint();
+            if (n % 4 == 3) {
+                t.abort();
+                System.out.println("ABORTED " + n);
+            } else {
+                t.commit();
+                System.out.println("COMMITTED " + n);
+            }
+            System.out.flush();
+        }
+    }
+
+    /** Kills a process running transactions at random points and checks
+     * after each crash that recovery leaves exactly the committed ones,
+     * and that the transaction in flight is all or nothing.
+     */
+    @Test public void killAtRandomPoints() throws Exception {
+        killAtRandomPoints(false);
+    }
+
+    /** The same with STEAL/NO-FORCE: committed pages may be missing from the
+     * file and uncommitted ones may be in it.
+     */
+    @Test public void killAtRandomPointsStealNoForce() throws Exception {
+        killAtRandomPoints(true);
+    }
+
+    private void killAtRandomPoints(boolean steal) throws Exception {
+        File dir = Files.createTempDirectory("recovery").toFile();
+        File table = new File(dir, "crash.dat");
+        assertTrue(table.createNewFile());
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        // the worker runs in dir, so its class path must not be relative
+        StringBuilder classPath = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (classPath.length() > 0) classPath.append(File.pathSeparator);
+            classPath.append(new File(entry).getAbsolutePath());
+        }
+        Random rand = new Random(6830);
+
+        // transactions whose outcome is known, and whether they committed
+        Map<Integer, Boolean> outcomes = new HashMap<>();
+        int next = 0;
+        try {
+            for (int round = 0; round < 10; round++) {
+                // the output goes to a file, what the worker wrote to a pipe
+                // may be lost when it is killed
+                File out = new File(dir, "stdout");
+                Process child = new ProcessBuilder(java, "-cp", classPath.toString(),
+                        RecoveryTest.class.getName(), table.getPath(), String.valueOf(next), steal ? "steal" : "")
+                        .directory(dir).redirectOutput(out).redirectError(new File(dir, "stderr")).start();
+                long deadline = System.currentTimeMillis() + 30000;
+                while (!Files.readAllLines(out.toPath()).contains("RECOVERED") && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertTrue("the worker did not start", Files.readAllLines(out.toPath()).contains("RECOVERED"));
+                Thread.sleep(100 + rand.nextInt(900));
+                child.destroyForcibly();
+                assertTrue(child.waitFor(30, TimeUnit.SECONDS));
+
+                int reported = next;
+                for (String line : Files.readAllLines(out.toPath())) {
+                    String[] words = line.split(" ");
+                    if (words.length != 2 || !(words[0].equals("COMMITTED") || words[0].equals("ABORTED"))) continue;
+                    int n = Integer.parseInt(words[1]);
+                    outcomes.put(n, words[0].equals("COMMITTED"));
+                    reported = Math.max(reported, n + 1);
+                }
+
+                Database.reset();
+                HeapFile f = Utility.openHeapFile(2, table);
+                new LogFile(new File(dir, "log")).recover();
+                Map<Integer, Set<Integer>> found = scan(f);
+
+                // the transaction that was running may or may not have committed
+                Set<Integer> inFlight = found.get(reported);
+                if (inFlight != null) assertEquals(tuplesOf(reported), inFlight.size());
+                outcomes.put(reported, inFlight != null);
+                for (Map.Entry<Integer, Boolean> e : outcomes.entrySet()) {
+                    int n = e.getKey();
+                    Set<Integer> tuples = found.remove(n);
+                    if (e.getValue()) {
+                        assertNotNull("committed transaction " + n + " lost", tuples);
+                        assertEquals(tuplesOf(n), tuples.size());
+                    } else {
+                        assertNull("aborted transaction " + n + " survived", tuples);
+                    }
+                }
+                assertTrue("tuples of unknown transactions " + found.keySet(), found.isEmpty());
+                next = reported + 1;
+            }
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    // transaction number -> the tuple numbers of its tuples in f
+    private static Map<Integer, Set<Integer>> scan(HeapFile f) throws Exception {
+        Map<Integer, Set<Integer>> found = new HashMap<>();
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan ss = new SeqScan(t.getId(), f.getId(), "");
+        ss.open();
+        while (ss.hasNext()) {
+            Tuple tup = ss.next();
+            int n = ((IntField) tup.getField(0)).getValue();
+            int i = ((IntField) tup.getField(1)).getValue();
+            assertTrue("duplicate tuple", found.computeIfAbsent(n, k -> new HashSet<>()).add(i));
+        }
+        ss.close();
+        t.commit();
+        return found;
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
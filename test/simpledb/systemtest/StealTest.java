@@ -0,0 +1,119 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+
+/**
+ * Tests the STEAL/NO-FORCE mode of BufferPool: transactions may dirty more
+ * pages than the pool holds, and committed pages reach the file later.
+ */
+public class StealTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 10;
+
+    private static final int ROWS = 100;
+
+    private static void insert(HeapFile f, Transaction t, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(new int[] { i, -i }));
+        }
+    }
+
+    private static int count(HeapFile f) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan ss = new SeqScan(t.getId(), f.getId(), "");
+        int n = 0;
+        ss.open();
+        while (ss.hasNext()) {
+            ss.next();
+            n++;
+        }
+        ss.close();
+        t.commit();
+        return n;
+    }
+
+    // enough tuples to fill three times as many pages as the pool holds
+    private static int largeInsert() {
+        int tuplesPerPage = BufferPool.getPageSize() * 8 / (Utility.getTupleDesc(2).getSize() * 8 + 1);
+        return POOL_PAGES * 3 * tuplesPerPage;
+    }
+
+    /** Without STEAL a transaction cannot dirty more pages than the pool holds. */
+    @Test public void noStealRunsOutOfPages() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        Database.resetBufferPool(POOL_PAGES);
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            insert(f, t, largeInsert());
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        t.abort();
+        assertEquals(ROWS, count(f));
+    }
+
+    @Test public void largeTransactionCommits() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        Database.resetBufferPool(POOL_PAGES).setSteal(true);
+        Transaction t = new Transaction();
+        t.start();
+        insert(f, t, largeInsert());
+        t.commit();
+        assertEquals(ROWS + largeInsert(), count(f));
+    }
+
+    /** The pages written out before the abort are rolled back in the file. */
+    @Test public void largeTransactionAborts() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        Database.resetBufferPool(POOL_PAGES).setSteal(true);
+        Transaction t = new Transaction();
+        t.start();
+        insert(f, t, largeInsert());
+        t.abort();
+        assertEquals(ROWS, count(f));
+
+        Database.reset();
+        f = Utility.openHeapFile(2, f.getFile());
+        assertEquals(ROWS, count(f));
+    }
+
+    /** A committed page is written by the page cleaner without any eviction. */
+    @Test public void cleanerWritesCommittedPages() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        Database.resetBufferPool(POOL_PAGES).setSteal(true);
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        t.commit();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        boolean written = false;
+        while (!written && System.currentTimeMillis() < deadline) {
+            for (int pageNo = 0; pageNo < f.numPages() && !written; pageNo++) {
+                HeapPage page = (HeapPage) f.readPage(new HeapPageId(f.getId(), pageNo));
+                for (Tuple tup : (Iterable<Tuple>) page::iterator) {
+                    if (((IntField) tup.getField(0)).getValue() == -42) written = true;
+                }
+            }
+            if (!written) Thread.sleep(10);
+        }
+        assertTrue(written);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(StealTest.class);
+    }
+}